@@ -19,10 +19,12 @@ package lol.hyper.customlauncher;
 
 import lol.hyper.customlauncher.tools.ExceptionWindow;
 import lol.hyper.customlauncher.tools.JSONUtils;
+import lol.hyper.customlauncher.ttrupdater.UpdateEngine;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 
+import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -57,6 +59,46 @@ public class ConfigHandler {
      * TTR install path.
      */
     private File installPath;
+    /**
+     * How many threads the TTR updater can use.
+     */
+    private int updaterThreads;
+    /**
+     * How many files the TTR updater downloads at the same time.
+     */
+    private int downloadThreads;
+    /**
+     * How many connections the TTR updater can open to a single host.
+     */
+    private int connectionsPerHost;
+    /**
+     * The TTR updater's download speed limit in KB/s. 0 means no limit.
+     */
+    private long downloadSpeedLimit;
+    /**
+     * Should the TTR updater extract files while downloading them?
+     */
+    private boolean streamDownloads;
+    /**
+     * Should the TTR updater delete files that TTR no longer uses?
+     */
+    private boolean removeOrphanedFiles;
+    /**
+     * Folder shared between installs that stores game files by their hash. Null if it's not used.
+     */
+    private File sharedStorePath;
+    /**
+     * The root URL patch manifests are read from.
+     */
+    private String patchManifestURL;
+    /**
+     * The root URL TTR files are downloaded from.
+     */
+    private String patchDownloadURL;
+    /**
+     * How fast the integrity scrubber reads TTR files in KB/s. 0 turns it off.
+     */
+    private long scrubSpeedLimit;
 
     /**
      * Initializes the config.
@@ -92,6 +134,96 @@ public class ConfigHandler {
         return installPath;
     }
 
+    /**
+     * Get how many threads the TTR updater can use.
+     *
+     * @return The thread count.
+     */
+    public int getUpdaterThreads() {
+        return updaterThreads;
+    }
+
+    /**
+     * Get how many files the TTR updater downloads at the same time.
+     *
+     * @return The download count.
+     */
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    /**
+     * Get how many connections the TTR updater can open to a single host.
+     *
+     * @return The connection count.
+     */
+    public int getConnectionsPerHost() {
+        return connectionsPerHost;
+    }
+
+    /**
+     * Get the TTR updater's download speed limit.
+     *
+     * @return The limit in KB/s. 0 means no limit.
+     */
+    public long getDownloadSpeedLimit() {
+        return downloadSpeedLimit;
+    }
+
+    /**
+     * Should the TTR updater extract files while downloading them, instead of going through the temp folder?
+     *
+     * @return Yes/No
+     */
+    public boolean streamDownloads() {
+        return streamDownloads;
+    }
+
+    /**
+     * Should the TTR updater delete files that TTR no longer uses after updating?
+     *
+     * @return Yes/No
+     */
+    public boolean removeOrphanedFiles() {
+        return removeOrphanedFiles;
+    }
+
+    /**
+     * Get the folder shared between installs that stores game files by their hash.
+     *
+     * @return The folder, or null if there isn't one.
+     */
+    public File getSharedStorePath() {
+        return sharedStorePath;
+    }
+
+    /**
+     * Get the root URL patch manifests are read from. This is TTR's CDN unless it's pointed at a mirror.
+     *
+     * @return The URL, without a trailing slash.
+     */
+    public String getPatchManifestURL() {
+        return patchManifestURL;
+    }
+
+    /**
+     * Get the root URL TTR files are downloaded from. This is TTR's download server unless it's pointed at a mirror.
+     *
+     * @return The URL, with a trailing slash.
+     */
+    public String getPatchDownloadURL() {
+        return patchDownloadURL;
+    }
+
+    /**
+     * Get how fast the integrity scrubber reads TTR files while the launcher is idle.
+     *
+     * @return The speed in KB/s. 0 means the scrubber is off.
+     */
+    public long getScrubSpeedLimit() {
+        return scrubSpeedLimit;
+    }
+
     /**
      * Update the config and save it to disk.
      *
@@ -129,6 +261,46 @@ public class ConfigHandler {
             configJSON.put("ttrInstallLocation", System.getProperty("user.dir") + File.separator + "ttr-files");
             changed = true;
         }
+        if (!configJSON.has("updaterThreads")) {
+            configJSON.put("updaterThreads", Runtime.getRuntime().availableProcessors());
+            changed = true;
+        }
+        if (!configJSON.has("downloadThreads")) {
+            configJSON.put("downloadThreads", 4);
+            changed = true;
+        }
+        if (!configJSON.has("connectionsPerHost")) {
+            configJSON.put("connectionsPerHost", 4);
+            changed = true;
+        }
+        if (!configJSON.has("downloadSpeedLimit")) {
+            configJSON.put("downloadSpeedLimit", 0);
+            changed = true;
+        }
+        if (!configJSON.has("streamDownloads")) {
+            configJSON.put("streamDownloads", true);
+            changed = true;
+        }
+        if (!configJSON.has("removeOrphanedFiles")) {
+            configJSON.put("removeOrphanedFiles", false);
+            changed = true;
+        }
+        if (!configJSON.has("sharedStorePath")) {
+            configJSON.put("sharedStorePath", "");
+            changed = true;
+        }
+        if (!configJSON.has("patchManifestURL")) {
+            configJSON.put("patchManifestURL", UpdateEngine.PATCHES_BASE_URL);
+            changed = true;
+        }
+        if (!configJSON.has("patchDownloadURL")) {
+            configJSON.put("patchDownloadURL", UpdateEngine.PATCHES_URL_DL);
+            changed = true;
+        }
+        if (!configJSON.has("scrubSpeedLimit")) {
+            configJSON.put("scrubSpeedLimit", 1024);
+            changed = true;
+        }
         if (changed) {
             configJSON.put("version", CONFIG_VERSION);
             JSONUtils.writeFile(configJSON, CONFIG_FILE);
@@ -158,16 +330,29 @@ public class ConfigHandler {
         installPath = new File(configJSON.getString("ttrInstallLocation"));
         invasionNotifications = configJSON.getBoolean("showInvasionNotifications");
         fieldOfficeNotifications = configJSON.getBoolean("showFieldOfficeNotifications");
+        updaterThreads = Math.max(1, configJSON.getInt("updaterThreads"));
+        downloadThreads = Math.max(1, configJSON.getInt("downloadThreads"));
+        connectionsPerHost = Math.max(1, configJSON.getInt("connectionsPerHost"));
+        downloadSpeedLimit = Math.max(0, configJSON.getLong("downloadSpeedLimit"));
+        streamDownloads = configJSON.getBoolean("streamDownloads");
+        removeOrphanedFiles = configJSON.getBoolean("removeOrphanedFiles");
+        String sharedStore = configJSON.getString("sharedStorePath").trim();
+        sharedStorePath = sharedStore.isEmpty() ? null : new File(sharedStore);
+        // manifest paths start with a slash, file names don't
+        patchManifestURL = configJSON.getString("patchManifestURL").trim().replaceAll("/+$", "");
+        patchDownloadURL = configJSON.getString("patchDownloadURL").trim().replaceAll("/+$", "") + "/";
+        scrubSpeedLimit = Math.max(0, configJSON.getLong("scrubSpeedLimit"));
 
         // create the ttr-files folder
-        if (!(installPath.exists())) {
+        // when running headless, a missing folder is reported instead, since a typo in the path would otherwise download all of TTR somewhere new
+        if (!(installPath.exists()) && !GraphicsEnvironment.isHeadless()) {
             try {
                 Files.createDirectory(installPath.toPath());
                 logger.info("Creating TTR install folder at " + installPath);
                 new FirstLaunch();
             } catch (IOException exception) {
                 logger.error("Cannot create TTR folder!", exception);
-                new ExceptionWindow(exception);
+                ExceptionWindow.show(exception);
             }
         }
 
@@ -176,6 +361,16 @@ public class ConfigHandler {
             logger.info("showInvasionNotifications: " + invasionNotifications);
             logger.info("showFieldOfficeNotifications: " + fieldOfficeNotifications);
             logger.info("ttrInstallLocation: " + installPath.getAbsolutePath());
+            logger.info("updaterThreads: " + updaterThreads);
+            logger.info("downloadThreads: " + downloadThreads);
+            logger.info("connectionsPerHost: " + connectionsPerHost);
+            logger.info("downloadSpeedLimit: " + downloadSpeedLimit);
+            logger.info("streamDownloads: " + streamDownloads);
+            logger.info("removeOrphanedFiles: " + removeOrphanedFiles);
+            logger.info("sharedStorePath: " + (sharedStorePath == null ? "none" : sharedStorePath.getAbsolutePath()));
+            logger.info("patchManifestURL: " + patchManifestURL);
+            logger.info("patchDownloadURL: " + patchDownloadURL);
+            logger.info("scrubSpeedLimit: " + scrubSpeedLimit);
         }
     }
 }
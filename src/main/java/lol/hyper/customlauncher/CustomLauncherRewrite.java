@@ -19,6 +19,9 @@ package lol.hyper.customlauncher;
 
 import lol.hyper.customlauncher.releasenotes.ReleaseNotesTracker;
 import lol.hyper.customlauncher.tools.ExceptionWindow;
+import lol.hyper.customlauncher.ttrupdater.BackgroundVerifier;
+import lol.hyper.customlauncher.ttrupdater.HeadlessUpdater;
+import lol.hyper.customlauncher.ttrupdater.IntegrityScrubber;
 import lol.hyper.customlauncher.updater.UpdateChecker;
 import lol.hyper.customlauncher.windows.MainWindow;
 import org.apache.logging.log4j.LogManager;
@@ -57,11 +60,17 @@ public class CustomLauncherRewrite {
     /**
      * The entry point for the program.
      *
-     * @param args Only used for updating the program. Passing "--remove-old VERSION" will simply remove that old version.
+     * @param args Passing "--remove-old VERSION" will simply remove that old version.
+     *             Passing "--update-only --manifest MANIFEST" updates TTR without any windows, then exits.
      */
     public static void main(String[] args) {
+        boolean updateOnly = args.length >= 1 && args[0].equalsIgnoreCase("--update-only");
         // load the log4j2config
-        System.setProperty("log4j.configurationFile", "log4j2config.xml");
+        // the headless updater prints progress to stdout, so it logs to stderr instead
+        System.setProperty("log4j.configurationFile", updateOnly ? "log4j2headless.xml" : "log4j2config.xml");
+        if (updateOnly) {
+            System.setProperty("java.awt.headless", "true");
+        }
         // load the version
         final Properties properties = new Properties();
         try {
@@ -86,10 +95,19 @@ public class CustomLauncherRewrite {
                 icon = ImageIO.read(iconStream);
             } catch (IOException exception) {
                 logger.error("Unable to load icon!");
-                new ExceptionWindow(exception);
+                ExceptionWindow.show(exception);
             }
         }
 
+        // update TTR and exit, for scripts and scheduled tasks
+        if (updateOnly) {
+            File configFolder = new File("config");
+            if (!configFolder.exists() && !configFolder.mkdir()) {
+                logger.warn("Unable to create config folder!");
+            }
+            System.exit(HeadlessUpdater.run(args));
+        }
+
         // this is used for removing old versions on Windows
         // passing "--remove-old <version>" will delete that version's exe
         // mainly for cleanup so there aren't 100 exes in the folder
@@ -112,9 +130,16 @@ public class CustomLauncherRewrite {
         File tempFolder = new File("temp");
         if (tempFolder.exists()) {
             // delete all files in the temp folder
+            // partial TTR downloads are kept so the updater can resume them
             File[] tempFolderFiles = tempFolder.listFiles();
+            boolean keptFiles = false;
             if (tempFolderFiles != null) {
                 for (File currentFile : tempFolderFiles) {
+                    if (isPartialDownload(currentFile)) {
+                        logger.info("Keeping partial download " + currentFile.getAbsolutePath());
+                        keptFiles = true;
+                        continue;
+                    }
                     try {
                         Files.delete(currentFile.toPath());
                     } catch (IOException exception) {
@@ -124,11 +149,13 @@ public class CustomLauncherRewrite {
                 }
             }
             // delete the actual temp folder
-            try {
-                Files.delete(Paths.get(System.getProperty("user.dir") + File.separator + "temp"));
-            } catch (IOException exception) {
-                logger.error("Unable to delete temp folder!", exception);
-                new ExceptionWindow(exception);
+            if (!keptFiles) {
+                try {
+                    Files.delete(Paths.get(System.getProperty("user.dir") + File.separator + "temp"));
+                } catch (IOException exception) {
+                    logger.error("Unable to delete temp folder!", exception);
+                    new ExceptionWindow(exception);
+                }
             }
         }
 
@@ -147,6 +174,11 @@ public class CustomLauncherRewrite {
             new ExceptionWindow(exception);
         }
 
+        // check TTR files against the last manifest while the user logs in
+        BackgroundVerifier.start();
+        // then keep slowly checking them for damage while the launcher is idle
+        IntegrityScrubber.start();
+
         // load ttr game updates
         ReleaseNotesTracker gameUpdateTracker = new ReleaseNotesTracker();
         gameUpdateTracker.getAllReleaseNotes();
@@ -157,4 +189,22 @@ public class CustomLauncherRewrite {
             frame.setVisible(true);
         });
     }
+
+    /**
+     * Is this file part of a TTR download that can be resumed?
+     * These are ".part" files that still have their ".part.json" state next to them, and the state files themselves.
+     *
+     * @param file The file in the temp folder.
+     * @return Yes/No
+     */
+    private static boolean isPartialDownload(File file) {
+        String name = file.getName();
+        if (name.endsWith(".part")) {
+            return new File(file.getParentFile(), name + ".json").exists();
+        }
+        if (name.endsWith(".part.json")) {
+            return new File(file.getParentFile(), name.substring(0, name.length() - ".json".length())).exists();
+        }
+        return false;
+    }
 }
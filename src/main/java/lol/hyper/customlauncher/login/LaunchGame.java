@@ -21,6 +21,7 @@ import lol.hyper.customlauncher.ConfigHandler;
 import lol.hyper.customlauncher.tools.ExceptionWindow;
 import lol.hyper.customlauncher.tools.OSDetection;
 import lol.hyper.customlauncher.tools.PopUpWindow;
+import lol.hyper.customlauncher.ttrupdater.IntegrityScrubber;
 import lol.hyper.customlauncher.ttrupdater.TTRUpdater;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -135,6 +136,8 @@ public final class LaunchGame extends Thread {
         env.put("TTR_PLAYCOOKIE", this.cookie);
 
         Thread t1 = new Thread(() -> {
+            // don't read game files in the background while the game is running
+            IntegrityScrubber.pause();
             try {
                 Process process = pb.start();
                 process.getInputStream().close();
@@ -142,6 +145,8 @@ public final class LaunchGame extends Thread {
             } catch (IOException | InterruptedException exception) {
                 logger.error("Unable to launch game!", exception);
                 new ExceptionWindow(exception);
+            } finally {
+                IntegrityScrubber.resume();
             }
         });
         t1.start();
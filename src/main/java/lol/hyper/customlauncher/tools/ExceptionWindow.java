@@ -22,6 +22,19 @@ import java.awt.*;
 
 public class ExceptionWindow extends JFrame {
 
+    /**
+     * Show an exception, unless there is no screen to show it on.
+     * The caller is expected to have logged it already.
+     *
+     * @param exception The exception to display on the window.
+     */
+    public static void show(Exception exception) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return;
+        }
+        new ExceptionWindow(exception);
+    }
+
     /**
      * Create a popup window for exceptions.
      *
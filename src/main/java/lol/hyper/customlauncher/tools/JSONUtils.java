@@ -49,7 +49,7 @@ public class JSONUtils {
             encoded = Files.readAllBytes(file.toPath());
         } catch (IOException exception) {
             logger.error("Unable to read file " + file, exception);
-            new ExceptionWindow(exception);
+            ExceptionWindow.show(exception);
         }
         return new String(encoded, StandardCharsets.UTF_8);
     }
@@ -68,7 +68,7 @@ public class JSONUtils {
             writer.close();
         } catch (IOException exception) {
             logger.error("Unable to write file " + file, exception);
-            new ExceptionWindow(exception);
+            ExceptionWindow.show(exception);
         }
     }
 
@@ -93,7 +93,7 @@ public class JSONUtils {
 
         } catch (IOException exception) {
             logger.error("Unable to read URL " + url, exception);
-            new ExceptionWindow(exception);
+            ExceptionWindow.show(exception);
             return null;
         }
 
@@ -125,7 +125,7 @@ public class JSONUtils {
 
         } catch (IOException exception) {
             logger.error("Unable to read URL " + url, exception);
-            new ExceptionWindow(exception);
+            ExceptionWindow.show(exception);
             return null;
         }
 
@@ -21,6 +21,8 @@ import org.apache.commons.lang3.SystemUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.awt.GraphicsEnvironment;
+
 public class OSDetection {
 
     /**
@@ -43,7 +45,9 @@ public class OSDetection {
 
         Logger logger = LogManager.getLogger(OSDetection.class);
         if (osType == null) {
-            new PopUpWindow(null, "We are unable to detect your operating system. Please report this to the GitHub page.\nInclude the log file please.");
+            if (!GraphicsEnvironment.isHeadless()) {
+                new PopUpWindow(null, "We are unable to detect your operating system. Please report this to the GitHub page.\nInclude the log file please.");
+            }
             logger.error("Unable to determine operating system! Are we running something not supported?");
             logger.info("OS: " + System.getProperty("os.name") + " " + System.getProperty("sun.arch.data.model") + "bit");
             logger.info("Arch: " + System.getProperty("os.arch"));
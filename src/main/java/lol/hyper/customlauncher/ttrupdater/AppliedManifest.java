@@ -0,0 +1,183 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.apache.logging.log4j.LogManager;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class AppliedManifest {
+
+    /**
+     * The file the last applied manifest is saved to, inside the install folder.
+     */
+    private static final String FILE_NAME = "lastManifest.json";
+
+    /**
+     * The manifest.
+     */
+    private final JSONObject patches;
+    /**
+     * The SHA1 of the manifest's contents, with its keys sorted.
+     */
+    private final String digest;
+
+    /**
+     * Creates an AppliedManifest.
+     *
+     * @param patches The manifest.
+     */
+    public AppliedManifest(JSONObject patches) {
+        this.patches = patches;
+        this.digest = digest(patches);
+    }
+
+    /**
+     * Load the last manifest we applied.
+     *
+     * @param installPath The TTR install path.
+     * @return The manifest, or null if there isn't one.
+     */
+    public static AppliedManifest load(File installPath) {
+        File manifestFile = new File(installPath, FILE_NAME);
+        if (!manifestFile.exists()) {
+            return null;
+        }
+        try {
+            JSONObject saved = new JSONObject(Files.readString(manifestFile.toPath(), StandardCharsets.UTF_8));
+            AppliedManifest manifest = new AppliedManifest(saved.getJSONObject("patches"));
+            // if the file was changed by hand, don't trust it
+            if (!manifest.digest.equals(saved.optString("digest"))) {
+                LogManager.getLogger(AppliedManifest.class).warn(manifestFile.getAbsolutePath() + " does not match its digest, ignoring it.");
+                return null;
+            }
+            return manifest;
+        } catch (Exception exception) {
+            LogManager.getLogger(AppliedManifest.class).warn("Unable to read " + manifestFile.getAbsolutePath(), exception);
+            return null;
+        }
+    }
+
+    /**
+     * Save this manifest as the last one we applied.
+     *
+     * @param installPath The TTR install path.
+     */
+    public void save(File installPath) throws IOException {
+        JSONObject saved = new JSONObject();
+        saved.put("digest", digest);
+        saved.put("patches", patches);
+        File manifestFile = new File(installPath, FILE_NAME);
+        File tempFile = new File(installPath, FILE_NAME + ".tmp");
+        Files.writeString(tempFile.toPath(), saved.toString(), StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Get the manifest.
+     *
+     * @return The manifest.
+     */
+    public JSONObject getPatches() {
+        return patches;
+    }
+
+    /**
+     * Get the SHA1 of the manifest.
+     *
+     * @return The digest.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Find the entries in a newer manifest that were added or changed since this one.
+     *
+     * @param newer The newer manifest.
+     * @return The keys of the added or changed entries.
+     */
+    public Set<String> changedKeys(AppliedManifest newer) {
+        Set<String> changed = new HashSet<>();
+        if (digest.equals(newer.digest)) {
+            return changed;
+        }
+        for (String key : newer.patches.keySet()) {
+            JSONObject entry = patches.optJSONObject(key);
+            if (entry == null || !entry.similar(newer.patches.getJSONObject(key))) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Calculate the SHA1 of a manifest. The keys are sorted first, so the same manifest always has the same digest.
+     *
+     * @param patches The manifest.
+     * @return The digest.
+     */
+    private static String digest(JSONObject patches) {
+        StringBuilder canonical = new StringBuilder();
+        canonicalize(patches, canonical);
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return PatchVerifier.toHex(sha1.digest(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Write a JSON value with its object keys sorted.
+     *
+     * @param value  The value.
+     * @param output Where to write it.
+     */
+    private static void canonicalize(Object value, StringBuilder output) {
+        if (value instanceof JSONObject object) {
+            output.append('{');
+            for (String key : new TreeSet<>(object.keySet())) {
+                output.append(JSONObject.quote(key)).append(':');
+                canonicalize(object.get(key), output);
+                output.append(',');
+            }
+            output.append('}');
+        } else if (value instanceof JSONArray array) {
+            output.append('[');
+            for (Object element : array) {
+                canonicalize(element, output);
+                output.append(',');
+            }
+            output.append(']');
+        } else {
+            output.append(JSONObject.valueToString(value));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.ConfigHandler;
+import lol.hyper.customlauncher.tools.OSDetection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+public class BackgroundVerifier implements Runnable {
+
+    /**
+     * The thread the check runs on, or null if it was never started.
+     */
+    private static Thread thread;
+
+    /**
+     * The BackgroundVerifier logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * TTR install path.
+     */
+    private final File installPath;
+    /**
+     * How many files we hash at the same time.
+     */
+    private final int threads;
+
+    /**
+     * Creates a BackgroundVerifier.
+     *
+     * @param configHandler The config, used for the install path and thread count.
+     */
+    private BackgroundVerifier(ConfigHandler configHandler) {
+        this.installPath = configHandler.getInstallPath();
+        this.threads = configHandler.getUpdaterThreads();
+    }
+
+    /**
+     * Start checking files against the last manifest in the background.
+     * Any file without a valid cached hash is hashed, so the updater can use the cache after login.
+     */
+    public static synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new BackgroundVerifier(new ConfigHandler()), "BackgroundVerifier");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Wait for the background check to finish, so it doesn't write the patch cache at the same time as the updater.
+     */
+    public static void waitForFinish() throws InterruptedException {
+        Thread running;
+        synchronized (BackgroundVerifier.class) {
+            running = thread;
+        }
+        if (running != null) {
+            running.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!installPath.exists()) {
+            return;
+        }
+        // an update in this or another launcher checks the files itself
+        try (InstallLock installLock = InstallLock.tryAcquire(installPath)) {
+            if (installLock == null) {
+                logger.info("The install is in use, skipping background file check.");
+                return;
+            }
+            check();
+        } catch (IOException exception) {
+            logger.error("Unable to lock the install, skipping background file check.", exception);
+        }
+    }
+
+    /**
+     * Roll back an interrupted install, then hash every file without a valid cached hash.
+     */
+    private void check() {
+        // files left over from an interrupted install would be cached as good
+        try {
+            new StagedInstall(installPath).recover();
+        } catch (IOException exception) {
+            logger.error("Unable to roll back the interrupted update, skipping background file check.", exception);
+            return;
+        }
+        AppliedManifest lastApplied = AppliedManifest.load(installPath);
+        if (lastApplied == null) {
+            logger.info("There is no saved manifest, skipping background file check.");
+            return;
+        }
+        JSONObject patches = lastApplied.getPatches();
+
+        long startTime = System.nanoTime();
+        PatchCache patchCache = new PatchCache(installPath);
+        List<String> filesToHash = new ArrayList<>();
+        for (String key : patches.keySet()) {
+            JSONObject currentFile = patches.getJSONObject(key);
+            List<String> only = currentFile.getJSONArray("only").toList().stream().map(object -> Objects.toString(object, null)).toList();
+            if (!only.contains(OSDetection.osType)) {
+                continue;
+            }
+            File localFile = new File(installPath, key);
+            if (localFile.exists() && patchCache.getHash(key, localFile) == null) {
+                filesToHash.add(key);
+            }
+        }
+        if (filesToHash.isEmpty()) {
+            logger.info("Every file has a valid cached hash, nothing to check in the background.");
+            return;
+        }
+
+        logger.info("Checking " + filesToHash.size() + " file(s) in the background.");
+        Map<String, String> hashes;
+        try {
+            hashes = new PatchVerifier(installPath, threads).hashFiles(filesToHash, key -> {});
+        } catch (IOException | InterruptedException exception) {
+            logger.error("Background file check failed!", exception);
+            return;
+        }
+        int changed = 0;
+        for (String key : filesToHash) {
+            String hash = hashes.get(key);
+            patchCache.put(key, new File(installPath, key), hash);
+            if (!hash.equalsIgnoreCase(patches.getJSONObject(key).getString("hash"))) {
+                changed++;
+            }
+        }
+        patchCache.save();
+        long checkTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        logger.info("Finished background file check. " + changed + " file(s) differ from the last manifest. Took " + checkTime + "ms.");
+    }
+}
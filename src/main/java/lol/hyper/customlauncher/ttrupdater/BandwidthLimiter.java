@@ -0,0 +1,71 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import java.util.concurrent.TimeUnit;
+
+public class BandwidthLimiter {
+
+    /**
+     * How many bytes can be read each second. 0 or less means no limit.
+     */
+    private final long bytesPerSecond;
+    /**
+     * How many bytes can be read right now. Goes negative when threads are in debt.
+     */
+    private long available;
+    /**
+     * The last time we added bytes to the bucket.
+     */
+    private long lastRefill;
+
+    /**
+     * Creates a limiter that is shared between all downloads.
+     *
+     * @param bytesPerSecond How many bytes can be read each second. 0 or less means no limit.
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Wait until we are allowed to read this many bytes.
+     *
+     * @param bytes How many bytes were read.
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // never store more than one second worth of bytes
+            long elapsed = Math.min(now - lastRefill, TimeUnit.SECONDS.toNanos(1));
+            available = Math.min(bytesPerSecond, available + elapsed * bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+            lastRefill = now;
+            available -= bytes;
+            waitNanos = available < 0 ? -available * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond : 0;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public class BsdiffPatcher {
+
+    /**
+     * Every BSDIFF40 patch starts with this.
+     */
+    private static final byte[] MAGIC = "BSDIFF40".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * The size of the patch header. The magic, followed by the control block length, diff block length and new file size.
+     */
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * Apply a BSDIFF40 patch to a file. The SHA1 of the new file is calculated as it is written.
+     *
+     * @param oldFile   The file to patch.
+     * @param patchFile The extracted patch.
+     * @param newFile   Where to write the patched file.
+     * @return The SHA1 of the patched file.
+     */
+    public static String apply(File oldFile, File patchFile, File newFile) throws IOException, NoSuchAlgorithmException {
+        byte[] header = new byte[HEADER_SIZE];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(patchFile))) {
+            in.readFully(header);
+        }
+        if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException(patchFile.getAbsolutePath() + " is not a BSDIFF40 patch");
+        }
+        long controlLength = readOffset(header, 8);
+        long diffLength = readOffset(header, 16);
+        long newSize = readOffset(header, 24);
+        if (controlLength < 0 || diffLength < 0 || newSize < 0 || HEADER_SIZE + controlLength + diffLength > patchFile.length()) {
+            throw new IOException(patchFile.getAbsolutePath() + " has a corrupt header");
+        }
+
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        try (FileChannel oldChannel = FileChannel.open(oldFile.toPath(), StandardOpenOption.READ);
+             DataInputStream control = openBlock(patchFile, HEADER_SIZE);
+             DataInputStream diff = openBlock(patchFile, HEADER_SIZE + controlLength);
+             DataInputStream extra = openBlock(patchFile, HEADER_SIZE + controlLength + diffLength);
+             OutputStream out = new PreallocatedFileWriter(newFile, newSize)) {
+            long oldSize = oldChannel.size();
+            byte[] controlBytes = new byte[24];
+            // both come from the same size class, since the size is known
+            byte[] buffer = BufferPool.acquireArray(Math.max(1, newSize));
+            byte[] oldBuffer = BufferPool.acquireArray(Math.max(1, newSize));
+            try {
+                long oldPosition = 0;
+                long newPosition = 0;
+                while (newPosition < newSize) {
+                    // each control entry says how many bytes to add to the old file, how many new bytes to copy, and how far to seek the old file
+                    control.readFully(controlBytes);
+                    long addLength = readOffset(controlBytes, 0);
+                    long copyLength = readOffset(controlBytes, 8);
+                    long seek = readOffset(controlBytes, 16);
+                    if (addLength < 0 || copyLength < 0 || newPosition + addLength + copyLength > newSize) {
+                        throw new IOException(patchFile.getAbsolutePath() + " has a corrupt control block");
+                    }
+
+                    for (long remaining = addLength; remaining > 0; ) {
+                        int length = (int) Math.min(buffer.length, remaining);
+                        diff.readFully(buffer, 0, length);
+                        // only the part of this range that falls inside the old file gets added
+                        long oldStart = Math.max(oldPosition, 0);
+                        long oldEnd = Math.min(oldPosition + length, oldSize);
+                        if (oldStart < oldEnd) {
+                            int offset = (int) (oldStart - oldPosition);
+                            int oldLength = (int) (oldEnd - oldStart);
+                            readFully(oldChannel, ByteBuffer.wrap(oldBuffer, offset, oldLength), oldStart);
+                            for (int i = offset; i < offset + oldLength; i++) {
+                                buffer[i] += oldBuffer[i];
+                            }
+                        }
+                        out.write(buffer, 0, length);
+                        sha1.update(buffer, 0, length);
+                        oldPosition += length;
+                        remaining -= length;
+                    }
+                    newPosition += addLength;
+
+                    for (long remaining = copyLength; remaining > 0; ) {
+                        int length = (int) Math.min(buffer.length, remaining);
+                        extra.readFully(buffer, 0, length);
+                        out.write(buffer, 0, length);
+                        sha1.update(buffer, 0, length);
+                        remaining -= length;
+                    }
+                    newPosition += copyLength;
+                    oldPosition += seek;
+                }
+            } finally {
+                BufferPool.release(buffer, newSize);
+                BufferPool.release(oldBuffer, newSize);
+            }
+        }
+        return PatchVerifier.toHex(sha1.digest());
+    }
+
+    /**
+     * Read from a position in a file until the buffer is full.
+     * The old file is read this way instead of being mapped, so it is not locked when it gets replaced.
+     *
+     * @param channel  The file to read.
+     * @param buffer   The buffer to fill.
+     * @param position Where to start reading.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Open one of the patch's bzip2 compressed blocks.
+     *
+     * @param patchFile The extracted patch.
+     * @param offset    Where the block starts.
+     * @return The block's contents.
+     */
+    private static DataInputStream openBlock(File patchFile, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(patchFile);
+        try {
+            in.getChannel().position(offset);
+            return new DataInputStream(new BZip2CompressorInputStream(new BufferedInputStream(in)));
+        } catch (IOException exception) {
+            in.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Read one of bsdiff's 8 byte numbers. They are little endian, with the top bit as the sign.
+     *
+     * @param bytes  The bytes to read from.
+     * @param offset Where the number starts.
+     * @return The number.
+     */
+    private static long readOffset(byte[] bytes, int offset) {
+        long value = bytes[offset + 7] & 0x7F;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return (bytes[offset + 7] & 0x80) != 0 ? -value : value;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferPool {
+
+    /**
+     * The buffer sizes handed out. Bigger transfers get bigger buffers, so big files take fewer reads and writes.
+     */
+    private static final int[] SIZES = {64 * 1024, 256 * 1024, 1024 * 1024};
+    /**
+     * How many buffers of each size are kept for reuse. Anything released past this is left for the GC.
+     */
+    private static final int MAX_POOLED = 8;
+    /**
+     * A transfer gets the smallest buffer that moves it in about this many reads.
+     */
+    private static final int READS_PER_TRANSFER = 16;
+    /**
+     * A download buffer holds about this much time worth of data at the measured download speed.
+     * Socket reads rarely fill more than that, so a bigger buffer would only hold memory.
+     */
+    private static final long DOWNLOAD_READ_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    /**
+     * Downloads shorter than this don't say much about the speed.
+     */
+    private static final long MIN_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    /**
+     * Downloads smaller than this are mostly latency, so they don't say much about the speed either.
+     */
+    private static final long MIN_SAMPLE_BYTES = 1024 * 1024;
+
+    /**
+     * Free direct buffers of each size.
+     */
+    private static final List<BlockingQueue<ByteBuffer>> DIRECT_BUFFERS = createPools();
+    /**
+     * Free arrays of each size.
+     */
+    private static final List<BlockingQueue<byte[]>> ARRAYS = createPools();
+    /**
+     * A moving average of how many bytes each buffer moved, used when the caller doesn't know how big a transfer is.
+     * Most of what the updater moves are large phase files, so it starts out large.
+     */
+    private static final AtomicLong averageTransfer = new AtomicLong((long) SIZES[SIZES.length - 1] * READS_PER_TRANSFER);
+    /**
+     * A moving average of the download speed in bytes per second, or 0 until a download was measured.
+     */
+    private static final AtomicLong downloadRate = new AtomicLong();
+    /**
+     * How many buffers had to be allocated.
+     */
+    private static final AtomicLong allocations = new AtomicLong();
+    /**
+     * How many buffers were reused from the pool.
+     */
+    private static final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * Get a direct buffer for moving data between files and channels. Give it back with {@link #release(ByteBuffer, long)}.
+     *
+     * @param sizeHint How many bytes are going to be moved, 0 if we don't know.
+     * @return A cleared buffer.
+     */
+    public static ByteBuffer acquireDirect(long sizeHint) {
+        int sizeClass = sizeClass(sizeHint);
+        ByteBuffer buffer = DIRECT_BUFFERS.get(sizeClass).poll();
+        if (buffer != null) {
+            reuses.incrementAndGet();
+            return buffer;
+        }
+        allocations.incrementAndGet();
+        return ByteBuffer.allocateDirect(SIZES[sizeClass]);
+    }
+
+    /**
+     * Get an array for copying between streams. Give it back with {@link #release(byte[], long)}.
+     *
+     * @param sizeHint How many bytes are going to be moved, 0 if we don't know.
+     * @return An array, its contents are whatever was left in it.
+     */
+    public static byte[] acquireArray(long sizeHint) {
+        return acquireArray(sizeClass(sizeHint));
+    }
+
+    /**
+     * Get an array for reading a download. It is sized from the transfer, but never bigger than what the measured download speed fills in one read.
+     * Give it back with {@link #release(byte[], long)}, and say how fast it went with {@link #recordDownload(long, long)}.
+     *
+     * @param sizeHint How many bytes are going to be downloaded, 0 if we don't know.
+     * @return An array, its contents are whatever was left in it.
+     */
+    public static byte[] acquireDownloadArray(long sizeHint) {
+        int sizeClass = sizeClass(sizeHint);
+        long rate = downloadRate.get();
+        if (rate > 0) {
+            sizeClass = Math.min(sizeClass, smallestFitting(rate * DOWNLOAD_READ_NANOS / TimeUnit.SECONDS.toNanos(1)));
+        }
+        return acquireArray(sizeClass);
+    }
+
+    /**
+     * Move the download speed average towards a download that just finished.
+     *
+     * @param bytes How many bytes were downloaded.
+     * @param nanos How long it took.
+     */
+    public static void recordDownload(long bytes, long nanos) {
+        if (bytes < MIN_SAMPLE_BYTES || nanos < MIN_SAMPLE_NANOS) {
+            return;
+        }
+        long rate = (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+        downloadRate.accumulateAndGet(rate, (average, latest) -> average == 0 ? latest : average + (latest - average) / 8);
+    }
+
+    /**
+     * Get an array of a size class from the pool, or allocate one.
+     *
+     * @param sizeClass The index into {@link #SIZES}.
+     * @return An array, its contents are whatever was left in it.
+     */
+    private static byte[] acquireArray(int sizeClass) {
+        byte[] array = ARRAYS.get(sizeClass).poll();
+        if (array != null) {
+            reuses.incrementAndGet();
+            return array;
+        }
+        allocations.incrementAndGet();
+        return new byte[SIZES[sizeClass]];
+    }
+
+    /**
+     * Give a direct buffer back. It must not be used after this.
+     *
+     * @param buffer      The buffer.
+     * @param transferred How many bytes it moved.
+     */
+    public static void release(ByteBuffer buffer, long transferred) {
+        recordTransfer(transferred);
+        int sizeClass = classOf(buffer.capacity());
+        if (sizeClass >= 0 && buffer.isDirect()) {
+            buffer.clear();
+            DIRECT_BUFFERS.get(sizeClass).offer(buffer);
+        }
+    }
+
+    /**
+     * Give an array back. It must not be used after this.
+     *
+     * @param array       The array.
+     * @param transferred How many bytes it moved.
+     */
+    public static void release(byte[] array, long transferred) {
+        recordTransfer(transferred);
+        int sizeClass = classOf(array.length);
+        if (sizeClass >= 0) {
+            ARRAYS.get(sizeClass).offer(array);
+        }
+    }
+
+    /**
+     * Get how many buffers had to be allocated since the launcher started.
+     *
+     * @return The allocations.
+     */
+    public static long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Get how many buffers were reused from the pool since the launcher started.
+     *
+     * @return The reuses.
+     */
+    public static long getReuses() {
+        return reuses.get();
+    }
+
+    /**
+     * Pick a buffer size for a transfer.
+     *
+     * @param sizeHint How many bytes are going to be moved, 0 if we don't know.
+     * @return The index into {@link #SIZES}.
+     */
+    private static int sizeClass(long sizeHint) {
+        long transfer = sizeHint > 0 ? sizeHint : averageTransfer.get();
+        return smallestFitting(transfer / READS_PER_TRANSFER);
+    }
+
+    /**
+     * Find the smallest buffer size that holds a number of bytes.
+     *
+     * @param wanted How many bytes the buffer should hold.
+     * @return The index into {@link #SIZES}, the biggest size if none of them are big enough.
+     */
+    private static int smallestFitting(long wanted) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (SIZES[i] >= wanted) {
+                return i;
+            }
+        }
+        return SIZES.length - 1;
+    }
+
+    /**
+     * Find the size class of a buffer.
+     *
+     * @param capacity The buffer's size.
+     * @return The index into {@link #SIZES}, or -1 if it isn't one of ours.
+     */
+    private static int classOf(int capacity) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (SIZES[i] == capacity) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Move the average transfer size towards a transfer that just finished.
+     *
+     * @param transferred How many bytes it moved.
+     */
+    private static void recordTransfer(long transferred) {
+        if (transferred > 0) {
+            averageTransfer.accumulateAndGet(transferred, (average, latest) -> average + (latest - average) / 8);
+        }
+    }
+
+    /**
+     * Create an empty pool for each size.
+     *
+     * @return The pools.
+     */
+    private static <T> List<BlockingQueue<T>> createPools() {
+        List<BlockingQueue<T>> pools = new ArrayList<>(SIZES.length);
+        for (int i = 0; i < SIZES.length; i++) {
+            pools.add(new ArrayBlockingQueue<>(MAX_POOLED));
+        }
+        return List.copyOf(pools);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.Set;
+
+public class DownloadPriority {
+
+    /**
+     * The game executables. The game can't start without these, so they go first.
+     */
+    private static final Set<String> ENGINE_FILES = Set.of("ttrengine", "ttrengine.exe", "ttrengine64.exe");
+
+    /**
+     * Get how important a file is for launching the game. Lower goes first.
+     * The engine comes first, then core files like libraries and resources, then the phase files.
+     *
+     * @param key The file name from the manifest.
+     * @return The file's tier.
+     */
+    public static int getTier(String key) {
+        String fileName = new File(key).getName().toLowerCase(Locale.ENGLISH);
+        if (ENGINE_FILES.contains(fileName)) {
+            return 0;
+        }
+        if (!fileName.startsWith("phase_")) {
+            return 1;
+        }
+        return 2;
+    }
+
+    /**
+     * Guess how big a file is going to be. The manifest's size is used if it has one,
+     * otherwise the copy we have now, which is usually close to the new one.
+     *
+     * @param file      The file's manifest entry.
+     * @param localFile The copy we have now.
+     * @return The size, or Long.MAX_VALUE if the manifest has no size and we don't have a copy.
+     */
+    public static long estimateSize(JSONObject file, File localFile) {
+        long size = file.optLong("size", 0);
+        if (size > 0) {
+            return size;
+        }
+        long compSize = file.optLong("compSize", 0);
+        if (compSize > 0) {
+            return compSize;
+        }
+        return localFile.exists() ? localFile.length() : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,698 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.CustomLauncherRewrite;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DownloadScheduler implements Closeable {
+
+    /**
+     * The DownloadScheduler logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * How many times we try a download before giving up.
+     */
+    private final int MAX_ATTEMPTS = 5;
+    /**
+     * How long to wait for a connection to open.
+     */
+    private final Timeout CONNECT_TIMEOUT = Timeout.ofSeconds(15);
+    /**
+     * How long a connection can go without sending any data before we give up on it.
+     */
+    private final Timeout SOCKET_TIMEOUT = Timeout.ofSeconds(30);
+    /**
+     * How long to wait for a free connection from the pool.
+     */
+    private final Timeout POOL_TIMEOUT = Timeout.ofMinutes(5);
+    /**
+     * Idle connections are closed after this long.
+     */
+    private final TimeValue IDLE_TIMEOUT = TimeValue.ofSeconds(30);
+    /**
+     * How many connections we can have open to each host.
+     */
+    private final int connectionsPerHost;
+    /**
+     * The connection permits for each host.
+     */
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    /**
+     * The bandwidth cap shared by all downloads.
+     */
+    private final BandwidthLimiter bandwidthLimiter;
+    /**
+     * How many bytes have been downloaded across all files.
+     */
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    /**
+     * How many times a failed download was tried again.
+     */
+    private final AtomicLong retries = new AtomicLong();
+    /**
+     * The HTTP client shared by all downloads. Connections are kept alive and reused between files.
+     */
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * Creates a DownloadScheduler. Downloads run on the caller's threads, and share the host connection limits, bandwidth cap and HTTP client.
+     *
+     * @param connectionsPerHost How many connections can be open to a single host.
+     * @param maxConnections     How many connections can be open in total.
+     * @param bytesPerSecond     The overall bandwidth cap. 0 means no limit.
+     */
+    public DownloadScheduler(int connectionsPerHost, int maxConnections, long bytesPerSecond) {
+        this.connectionsPerHost = Math.max(1, connectionsPerHost);
+        this.bandwidthLimiter = new BandwidthLimiter(bytesPerSecond);
+
+        ConnectionConfig connectionConfig = ConnectionConfig.custom().setConnectTimeout(CONNECT_TIMEOUT).setSocketTimeout(SOCKET_TIMEOUT).build();
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnPerRoute(this.connectionsPerHost)
+                .setMaxConnTotal(Math.max(this.connectionsPerHost, maxConnections))
+                .setDefaultConnectionConfig(connectionConfig)
+                .build();
+        RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(POOL_TIMEOUT).build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setUserAgent(CustomLauncherRewrite.userAgent)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_TIMEOUT)
+                .build();
+    }
+
+    /**
+     * Download a file to the temp folder.
+     *
+     * @param downloadURL    The URL to download.
+     * @param downloadOutput The file to save to.
+     * @param expectedHash   The SHA1 of the compressed file from the manifest, or null if we don't know it.
+     * @param transfer       Where the file's progress is reported.
+     */
+    public void download(URL downloadURL, File downloadOutput, String expectedHash, TransferProgress.Transfer transfer) throws Exception {
+        withHostPermit(downloadURL, () -> {
+            logger.info("Downloading " + downloadURL);
+            long downloadStart = System.nanoTime();
+            saveFile(downloadURL, downloadOutput, expectedHash, transfer);
+            long downloadTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - downloadStart, TimeUnit.NANOSECONDS);
+            logger.info("Finished downloading " + downloadOutput.getAbsolutePath() + ". Took " + downloadTime + "ms.");
+            return null;
+        });
+    }
+
+    /**
+     * Download a file and extract it straight to its destination, without going through the temp folder.
+     *
+     * @param downloadURL  The URL to download.
+     * @param destination  The file to extract to.
+     * @param expectedSize How big the extracted file is expected to be, 0 if we don't know.
+     * @param transfer     Where the file's progress is reported.
+     * @return The SHA1 of the extracted file.
+     */
+    public String downloadAndExtract(URL downloadURL, File destination, long expectedSize, TransferProgress.Transfer transfer) throws Exception {
+        return withHostPermit(downloadURL, () -> {
+            logger.info("Downloading and extracting " + downloadURL + " to " + destination.getAbsolutePath());
+            long downloadStart = System.nanoTime();
+            String extractedHash = streamFile(downloadURL, destination, expectedSize, transfer);
+            long downloadTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - downloadStart, TimeUnit.NANOSECONDS);
+            logger.info("Finished downloading and extracting " + destination.getAbsolutePath() + ". Took " + downloadTime + "ms.");
+            return extractedHash;
+        });
+    }
+
+    /**
+     * Get how many bytes have been downloaded across all files. Bytes that were downloaded again after a failure count each time, so this is for speed, not progress.
+     *
+     * @return The bytes downloaded.
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    /**
+     * Get how many times a failed download was tried again.
+     *
+     * @return The retries, across all files.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Run a download while holding one of the connection permits for its host.
+     *
+     * @param downloadURL The URL that will be downloaded.
+     * @param download    The download to run.
+     * @return Whatever the download returns.
+     */
+    private <T> T withHostPermit(URL downloadURL, Callable<T> download) throws Exception {
+        Semaphore permits = hostPermits.computeIfAbsent(downloadURL.getHost(), host -> new Semaphore(connectionsPerHost, true));
+        permits.acquire();
+        try {
+            return download.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Close the HTTP client and every connection it has open.
+     */
+    @Override
+    public void close() {
+        httpClient.close(CloseMode.GRACEFUL);
+    }
+
+    /**
+     * Send a GET request for a download. The response must be closed, which hands its connection back to the pool.
+     *
+     * @param httpGet The request to send.
+     * @return The response from the server.
+     */
+    private ClassicHttpResponse execute(HttpGet httpGet) throws IOException {
+        return httpClient.executeOpen(null, httpGet, null);
+    }
+
+    /**
+     * Open a response body that respects the bandwidth cap and reports progress.
+     *
+     * @param entity   The response body.
+     * @param read     Counts the bytes read from this response.
+     * @param start    Where in the file the response starts.
+     * @param length   How big the whole file is, -1 if we don't know.
+     * @param transfer Where the file's progress is reported.
+     * @return The stream to read the body from.
+     */
+    private InputStream openEntity(HttpEntity entity, AtomicLong read, long start, long length, TransferProgress.Transfer transfer) throws IOException {
+        transfer.moved(start, length);
+        return new ThrottledInputStream(entity.getContent(), bandwidthLimiter, bytes -> {
+            downloadedBytes.addAndGet(bytes);
+            transfer.moved(start + read.addAndGet(bytes), length);
+        });
+    }
+
+    /**
+     * Copy a response body to an output.
+     *
+     * @param entity   The response body.
+     * @param output   Where to write the body.
+     * @param start    Where in the file the response starts.
+     * @param length   How big the whole file is, -1 if we don't know.
+     * @param transfer Where the file's progress is reported.
+     */
+    private void copyEntity(HttpEntity entity, OutputStream output, long start, long length, TransferProgress.Transfer transfer) throws IOException {
+        AtomicLong read = new AtomicLong();
+        byte[] buffer = BufferPool.acquireDownloadArray(entity.getContentLength());
+        long copyStart = System.nanoTime();
+        try (InputStream input = openEntity(entity, read, start, length, transfer)) {
+            int n;
+            while (-1 != (n = input.read(buffer))) {
+                output.write(buffer, 0, n);
+            }
+        } finally {
+            BufferPool.recordDownload(read.get(), System.nanoTime() - copyStart);
+            BufferPool.release(buffer, read.get());
+        }
+    }
+
+    /**
+     * Downloads TTR file and saves it to the temp folder.
+     * The file is downloaded to a ".part" file first, with its state stored next to it.
+     * If the connection drops, the download resumes from where it stopped.
+     *
+     * @param downloadURL    The URL to download.
+     * @param downloadOutput The file to save to.
+     * @param expectedHash   The SHA1 of the compressed file from the manifest, or null if we don't know it.
+     * @param transfer       Where the file's progress is reported.
+     */
+    private void saveFile(URL downloadURL, File downloadOutput, String expectedHash, TransferProgress.Transfer transfer) throws IOException, NoSuchAlgorithmException, InterruptedException {
+        File partFile = new File(downloadOutput.getPath() + ".part");
+        File stateFile = new File(downloadOutput.getPath() + ".part.json");
+
+        JSONObject state = null;
+        IOException lastFailure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                state = downloadPart(downloadURL, partFile, stateFile, readState(downloadURL, partFile, stateFile), transfer);
+                lastFailure = null;
+                break;
+            } catch (IOException exception) {
+                lastFailure = exception;
+                logger.warn("Download of " + downloadURL + " failed (attempt " + attempt + "/" + MAX_ATTEMPTS + "). " + partFile.length() + " bytes are saved.", exception);
+                if (attempt < MAX_ATTEMPTS) {
+                    retries.incrementAndGet();
+                    TimeUnit.SECONDS.sleep(attempt);
+                }
+            }
+        }
+        if (lastFailure != null) {
+            throw lastFailure;
+        }
+
+        // make sure we got the whole file before anything gets extracted
+        long totalLength = state.optLong("length", -1);
+        if (totalLength >= 0 && partFile.length() != totalLength) {
+            throw new IOException("Downloaded " + downloadURL + " but got " + partFile.length() + " bytes instead of " + totalLength);
+        }
+        if (expectedHash != null) {
+            String hash = PatchVerifier.calcSHA1(partFile);
+            if (!hash.equalsIgnoreCase(expectedHash)) {
+                Files.deleteIfExists(partFile.toPath());
+                Files.deleteIfExists(stateFile.toPath());
+                throw new IOException("Downloaded " + downloadURL + " but the hash does not match! Expected " + expectedHash + " but got " + hash);
+            }
+        }
+        Files.move(partFile.toPath(), downloadOutput.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(stateFile.toPath());
+    }
+
+    /**
+     * Read the state of a partial download.
+     *
+     * @param downloadURL The URL being downloaded.
+     * @param partFile    The partial file.
+     * @param stateFile   The file that stores the partial download's state.
+     * @return The partial download's state, or null if there is nothing to resume.
+     */
+    private JSONObject readState(URL downloadURL, File partFile, File stateFile) throws IOException {
+        if (!partFile.exists() || !stateFile.exists()) {
+            return null;
+        }
+        JSONObject state;
+        try {
+            state = new JSONObject(Files.readString(stateFile.toPath(), StandardCharsets.UTF_8));
+        } catch (IOException | JSONException exception) {
+            // without its state we can't tell if the partial file is still good, so throw both away
+            logger.warn("Unable to read partial download state " + stateFile.getAbsolutePath() + ", starting over.", exception);
+            Files.deleteIfExists(partFile.toPath());
+            Files.deleteIfExists(stateFile.toPath());
+            return null;
+        }
+        if (!downloadURL.toString().equals(state.optString("url"))) {
+            logger.info("Partial download " + partFile.getAbsolutePath() + " is for a different URL, starting over.");
+            return null;
+        }
+        logger.info("Found partial download " + partFile.getAbsolutePath() + " with " + partFile.length() + " bytes, resuming.");
+        return state;
+    }
+
+    /**
+     * Save the state of a partial download. It is written next to the state file, then moved over it,
+     * so a crash never leaves a half written state behind.
+     *
+     * @param state     The partial download's state.
+     * @param stateFile The file that stores the partial download's state.
+     */
+    private void writeState(JSONObject state, File stateFile) throws IOException {
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(tempFile)) {
+            output.write(state.toString().getBytes(StandardCharsets.UTF_8));
+            output.getFD().sync();
+        }
+        try {
+            Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Download the rest of a file, asking the server to skip the bytes we already have.
+     *
+     * @param downloadURL The URL to download.
+     * @param partFile    The partial file.
+     * @param stateFile   The file that stores the partial download's state.
+     * @param state       The partial download's state, or null to start from the beginning.
+     * @param transfer    Where the file's progress is reported.
+     * @return The download's state.
+     */
+    private JSONObject downloadPart(URL downloadURL, File partFile, File stateFile, JSONObject state, TransferProgress.Transfer transfer) throws IOException {
+        long offset = state != null && partFile.exists() ? partFile.length() : 0;
+
+        HttpGet httpGet = new HttpGet(downloadURL.toString());
+        if (offset > 0) {
+            httpGet.addHeader("Range", "bytes=" + offset + "-");
+            // only resume if the file on the server did not change
+            String validator = state.optString("etag", state.optString("lastModified", null));
+            if (validator != null) {
+                httpGet.addHeader("If-Range", validator);
+            }
+        }
+
+        try (ClassicHttpResponse httpResponse = execute(httpGet)) {
+            int code = httpResponse.getCode();
+            HttpEntity entity = httpResponse.getEntity();
+            if (code == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0 && state.optLong("length", -1) == offset) {
+                // we already have the whole file
+                EntityUtils.consume(entity);
+                return state;
+            }
+            if (code == HttpStatus.SC_PARTIAL_CONTENT && offset > 0) {
+                Header contentRange = httpResponse.getFirstHeader("Content-Range");
+                if (contentRange == null || !contentRange.getValue().startsWith("bytes " + offset + "-")) {
+                    EntityUtils.consume(entity);
+                    Files.deleteIfExists(partFile.toPath());
+                    throw new IOException("Server sent the wrong range for " + downloadURL + ": " + contentRange);
+                }
+                // not preallocated, the length of a partial file is how we know where to resume
+                try (OutputStream output = new PreallocatedFileWriter(partFile, 0, true)) {
+                    copyEntity(entity, output, offset, state.optLong("length", -1), transfer);
+                }
+                return state;
+            }
+            if (code != HttpStatus.SC_OK) {
+                EntityUtils.consume(entity);
+                if (code == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                    Files.deleteIfExists(partFile.toPath());
+                }
+                throw new IOException("Server returned " + code + " for " + downloadURL);
+            }
+
+            // the server sent the whole file, start over
+            JSONObject newState = new JSONObject();
+            newState.put("url", downloadURL.toString());
+            newState.put("length", entity.getContentLength());
+            Header etag = httpResponse.getFirstHeader("ETag");
+            if (etag != null) {
+                newState.put("etag", etag.getValue());
+            }
+            Header lastModified = httpResponse.getFirstHeader("Last-Modified");
+            if (lastModified != null) {
+                newState.put("lastModified", lastModified.getValue());
+            }
+            writeState(newState, stateFile);
+            try (OutputStream output = new PreallocatedFileWriter(partFile, 0)) {
+                copyEntity(entity, output, 0, entity.getContentLength(), transfer);
+            }
+            return newState;
+        }
+    }
+
+    /**
+     * Downloads a TTR file and extracts it to its destination in the same pass.
+     * The SHA1 of the extracted output is calculated as it is written.
+     * If the connection drops, the download resumes from the compressed byte it stopped at, so the extraction carries on where it was.
+     * If the server won't resume, the file is downloaded and extracted again from the start.
+     *
+     * @param downloadURL  The URL to download.
+     * @param destination  The file to extract to.
+     * @param expectedSize How big the extracted file is expected to be, 0 if we don't know.
+     * @param transfer     Where the file's progress is reported.
+     * @return The SHA1 of the extracted file.
+     */
+    private String streamFile(URL downloadURL, File destination, long expectedSize, TransferProgress.Transfer transfer) throws IOException, NoSuchAlgorithmException {
+        ResumingBody body = new ResumingBody(downloadURL, transfer);
+        while (true) {
+            body.start();
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = BufferPool.acquireArray(expectedSize);
+            long extracted = 0;
+            try (InputStream input = new BZip2CompressorInputStream(new BufferedInputStream(body)); OutputStream output = new PreallocatedFileWriter(destination, expectedSize)) {
+                int n;
+                while (-1 != (n = input.read(buffer))) {
+                    sha1.update(buffer, 0, n);
+                    output.write(buffer, 0, n);
+                    extracted += n;
+                }
+            } catch (ResumeRefusedException exception) {
+                logger.warn("Server did not resume " + downloadURL + ", downloading it again from the start.");
+                continue;
+            } finally {
+                BufferPool.release(buffer, extracted);
+            }
+            return PatchVerifier.toHex(sha1.digest());
+        }
+    }
+
+    /**
+     * The server sent the whole file when we asked for the rest of it, so a stream that was already decoding can't continue.
+     */
+    private static class ResumeRefusedException extends IOException {
+
+        /**
+         * Creates a ResumeRefusedException.
+         *
+         * @param message What happened.
+         */
+        ResumeRefusedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A download's body that reconnects when the connection drops, asking the server for the bytes after the ones already read.
+     * Whatever reads from it only sees the file's bytes in order, so a bzip2 stream can be decoded straight from it.
+     * Failures across every connection share the same {@link #MAX_ATTEMPTS}.
+     */
+    private class ResumingBody extends InputStream {
+
+        /**
+         * The URL being downloaded.
+         */
+        private final URL downloadURL;
+        /**
+         * Where the file's progress is reported.
+         */
+        private final TransferProgress.Transfer transfer;
+        /**
+         * The request being read, so a broken connection can be dropped instead of drained.
+         */
+        private HttpGet request;
+        /**
+         * The response being read, or null between connections.
+         */
+        private ClassicHttpResponse response;
+        /**
+         * The current response's body.
+         */
+        private InputStream input;
+        /**
+         * How many bytes were read from the current response.
+         */
+        private AtomicLong read;
+        /**
+         * How many bytes of the file have been read, across every connection.
+         */
+        private long position;
+        /**
+         * How big the whole file is, or -1 if the server didn't say.
+         */
+        private long length;
+        /**
+         * The ETag or Last-Modified date from the first response, so we only resume the same file.
+         */
+        private String validator;
+        /**
+         * How many times a connection failed.
+         */
+        private int failures = 0;
+
+        /**
+         * Creates a ResumingBody. Nothing is requested until {@link #start()} is called.
+         *
+         * @param downloadURL The URL to download.
+         * @param transfer    Where the file's progress is reported.
+         */
+        ResumingBody(URL downloadURL, TransferProgress.Transfer transfer) {
+            this.downloadURL = downloadURL;
+            this.transfer = transfer;
+        }
+
+        /**
+         * Request the file from the start.
+         */
+        void start() throws IOException {
+            position = 0;
+            length = -1;
+            validator = null;
+            try {
+                connect();
+            } catch (InterruptedIOException exception) {
+                throw exception;
+            } catch (IOException exception) {
+                reconnect(exception);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int n = read(single, 0, 1);
+            return n == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            while (true) {
+                try {
+                    int n = input.read(bytes, offset, length);
+                    if (n == -1 && this.length >= 0 && position < this.length) {
+                        throw new EOFException("Connection closed after " + position + " of " + this.length + " bytes");
+                    }
+                    if (n > 0) {
+                        position += n;
+                    }
+                    return n;
+                } catch (InterruptedIOException exception) {
+                    throw exception;
+                } catch (IOException exception) {
+                    reconnect(exception);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closeResponse();
+        }
+
+        /**
+         * Connect again after a failure, waiting a little longer after each one. Gives up once every attempt is used.
+         *
+         * @param exception What went wrong.
+         */
+        private void reconnect(IOException exception) throws IOException {
+            while (true) {
+                if (request != null) {
+                    request.cancel();
+                }
+                closeResponse();
+                failures++;
+                logger.warn("Download of " + downloadURL + " failed (attempt " + failures + "/" + MAX_ATTEMPTS + "). " + position + " bytes were read.", exception);
+                if (failures >= MAX_ATTEMPTS) {
+                    throw exception;
+                }
+                retries.incrementAndGet();
+                try {
+                    TimeUnit.SECONDS.sleep(failures);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download was interrupted");
+                }
+                try {
+                    connect();
+                    return;
+                } catch (InterruptedIOException | ResumeRefusedException connectException) {
+                    throw connectException;
+                } catch (IOException connectException) {
+                    exception = connectException;
+                }
+            }
+        }
+
+        /**
+         * Send the request for the bytes after the ones already read.
+         */
+        private void connect() throws IOException {
+            closeResponse();
+            HttpGet httpGet = new HttpGet(downloadURL.toString());
+            request = httpGet;
+            if (position > 0) {
+                httpGet.addHeader("Range", "bytes=" + position + "-");
+                if (validator != null) {
+                    httpGet.addHeader("If-Range", validator);
+                }
+            }
+            ClassicHttpResponse httpResponse = execute(httpGet);
+            int code = httpResponse.getCode();
+            HttpEntity entity = httpResponse.getEntity();
+            if (position > 0 && code == HttpStatus.SC_PARTIAL_CONTENT) {
+                Header contentRange = httpResponse.getFirstHeader("Content-Range");
+                if (contentRange == null || !contentRange.getValue().startsWith("bytes " + position + "-")) {
+                    EntityUtils.consume(entity);
+                    httpResponse.close();
+                    throw new IOException("Server sent the wrong range for " + downloadURL + ": " + contentRange);
+                }
+                logger.info("Resuming " + downloadURL + " from byte " + position + ".");
+            } else if (code == HttpStatus.SC_OK) {
+                if (position > 0) {
+                    // don't read the whole file just to throw it away
+                    httpGet.cancel();
+                    try {
+                        httpResponse.close();
+                    } catch (IOException exception) {
+                        logger.debug("Unable to close response for " + downloadURL, exception);
+                    }
+                    throw new ResumeRefusedException("Server sent all of " + downloadURL + " instead of resuming it");
+                }
+                length = entity.getContentLength();
+                Header etag = httpResponse.getFirstHeader("ETag");
+                Header lastModified = httpResponse.getFirstHeader("Last-Modified");
+                validator = etag != null ? etag.getValue() : lastModified != null ? lastModified.getValue() : null;
+            } else {
+                EntityUtils.consume(entity);
+                httpResponse.close();
+                throw new IOException("Server returned " + code + " for " + downloadURL);
+            }
+            response = httpResponse;
+            read = new AtomicLong();
+            input = openEntity(entity, read, position, length, transfer);
+        }
+
+        /**
+         * Close the current response, if there is one.
+         */
+        private void closeResponse() {
+            if (response == null) {
+                return;
+            }
+            try {
+                response.close();
+            } catch (IOException exception) {
+                logger.debug("Unable to close response for " + downloadURL, exception);
+            }
+            response = null;
+            input = null;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.ConfigHandler;
+import lol.hyper.customlauncher.CustomLauncherRewrite;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HeadlessUpdater implements UpdateEngine.Listener {
+
+    /**
+     * Everything is up to date.
+     */
+    public static final int EXIT_OK = 0;
+    /**
+     * The arguments were wrong.
+     */
+    public static final int EXIT_USAGE = 1;
+    /**
+     * The TTR install folder doesn't exist.
+     */
+    public static final int EXIT_NO_INSTALL = 2;
+    /**
+     * The manifest couldn't be read.
+     */
+    public static final int EXIT_BAD_MANIFEST = 3;
+    /**
+     * The installed files couldn't be checked.
+     */
+    public static final int EXIT_CHECK_FAILED = 4;
+    /**
+     * Files couldn't be downloaded or installed. The old files are still in place.
+     */
+    public static final int EXIT_UPDATE_FAILED = 5;
+    /**
+     * Another launcher is using the install folder. Nothing was changed, try again later.
+     */
+    public static final int EXIT_LOCKED = 6;
+
+    /**
+     * The HeadlessUpdater logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * Where to read the manifest from. A file, a URL, or a path on TTR's CDN.
+     */
+    private final String manifest;
+    /**
+     * The root URL that files are downloaded from, or null to use the config's.
+     */
+    private final String downloadBaseURL;
+    /**
+     * The last download progress we printed, so every tiny read doesn't print a line.
+     */
+    private final AtomicInteger lastPercent = new AtomicInteger(-1);
+    /**
+     * When the update started.
+     */
+    private final long startTime = System.nanoTime();
+    /**
+     * When files started downloading, throughput is measured from here.
+     */
+    private volatile long downloadStartTime;
+    /**
+     * The engine, set once it's running.
+     */
+    private UpdateEngine updateEngine;
+
+    /**
+     * Creates a HeadlessUpdater.
+     *
+     * @param manifest        Where to read the manifest from. A file, a URL, or a path on TTR's CDN.
+     * @param downloadBaseURL The root URL that files are downloaded from, or null to use the config's.
+     */
+    public HeadlessUpdater(String manifest, String downloadBaseURL) {
+        this.manifest = manifest;
+        this.downloadBaseURL = downloadBaseURL;
+    }
+
+    /**
+     * Run the updater from the command line.
+     * Usage: --update-only --manifest &lt;file, URL or CDN path&gt; [--download-url &lt;URL&gt;]
+     * Progress is printed to stdout as one JSON object per line, logs go to stderr.
+     *
+     * @param args The program arguments.
+     * @return The exit code.
+     */
+    public static int run(String[] args) {
+        String manifest = null;
+        String downloadBaseURL = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--update-only")) {
+                continue;
+            }
+            if (!arg.equals("--manifest") && !arg.equals("--download-url")) {
+                return usage("Unknown argument " + arg);
+            }
+            if (i + 1 >= args.length) {
+                return usage("Missing value for " + arg);
+            }
+            if (arg.equals("--manifest")) {
+                manifest = args[++i];
+            } else {
+                downloadBaseURL = args[++i].replaceAll("/+$", "") + "/";
+            }
+        }
+        if (manifest == null) {
+            return usage("Missing --manifest");
+        }
+        return new HeadlessUpdater(manifest, downloadBaseURL).update();
+    }
+
+    /**
+     * Print how to use the headless updater.
+     *
+     * @param problem What was wrong with the arguments.
+     * @return The usage exit code.
+     */
+    private static int usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: --update-only --manifest <file, URL or CDN path> [--download-url <URL>]");
+        return EXIT_USAGE;
+    }
+
+    /**
+     * Check and update the TTR install.
+     *
+     * @return The exit code.
+     */
+    public int update() {
+        ConfigHandler configHandler = new ConfigHandler();
+        File installPath = configHandler.getInstallPath();
+        if (!installPath.exists()) {
+            logger.error("Can't find install directory " + installPath.getAbsolutePath());
+            return finish(EXIT_NO_INSTALL, 0);
+        }
+
+        JSONObject patches;
+        try {
+            patches = readManifest(configHandler.getPatchManifestURL());
+        } catch (IOException | JSONException exception) {
+            logger.error("Unable to read patch manifest " + manifest, exception);
+            return finish(EXIT_BAD_MANIFEST, 0);
+        }
+
+        updateEngine = new UpdateEngine(configHandler, downloadBaseURL == null ? configHandler.getPatchDownloadURL() : downloadBaseURL, this);
+        InstallLock installLock;
+        try {
+            installLock = InstallLock.tryAcquire(installPath);
+        } catch (IOException exception) {
+            logger.error("Unable to lock " + installPath.getAbsolutePath(), exception);
+            return finish(EXIT_CHECK_FAILED, 0);
+        }
+        if (installLock == null) {
+            logger.error("Another launcher is using " + installPath.getAbsolutePath() + ", try again once it is done.");
+            return finish(EXIT_LOCKED, 0);
+        }
+        try (installLock) {
+            Map<String, String> filesToDownload;
+            try {
+                filesToDownload = updateEngine.checkFiles(patches);
+            } catch (IOException | InterruptedException exception) {
+                logger.error("Unable to check files in " + installPath.getAbsolutePath(), exception);
+                return finish(EXIT_CHECK_FAILED, 0);
+            }
+            try {
+                updateEngine.update(patches, filesToDownload);
+            } catch (IOException | InterruptedException exception) {
+                logger.error("Unable to update files", exception);
+                return finish(EXIT_UPDATE_FAILED, filesToDownload.size());
+            }
+            return finish(EXIT_OK, filesToDownload.size());
+        }
+    }
+
+    /**
+     * Read the manifest from a file, a URL, or a path on the CDN.
+     *
+     * @param patchManifestURL The CDN to read manifest paths from.
+     * @return The manifest.
+     */
+    private JSONObject readManifest(String patchManifestURL) throws IOException {
+        File manifestFile = new File(manifest);
+        if (manifestFile.isFile()) {
+            return new JSONObject(Files.readString(manifestFile.toPath(), StandardCharsets.UTF_8));
+        }
+        String url = manifest.startsWith("http://") || manifest.startsWith("https://") ? manifest : patchManifestURL + manifest;
+        logger.info("Fetching url: " + url);
+        URLConnection connection = new URL(url).openConnection();
+        connection.setRequestProperty("User-Agent", CustomLauncherRewrite.userAgent);
+        try (InputStream inputStream = connection.getInputStream()) {
+            return new JSONObject(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Print the final result.
+     *
+     * @param exitCode The exit code.
+     * @param files    How many files were downloaded.
+     * @return The exit code.
+     */
+    private int finish(int exitCode, int files) {
+        JSONObject event = event("finished");
+        event.put("exitCode", exitCode);
+        event.put("files", files);
+        event.put("bytes", updateEngine == null ? 0 : updateEngine.getDownloadedBytes());
+        event.put("bytesPerSecond", bytesPerSecond());
+        event.put("millis", TimeUnit.MILLISECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS));
+        print(event);
+        return exitCode;
+    }
+
+    /**
+     * Get the average download speed.
+     *
+     * @return The bytes downloaded per second since downloads started, or 0 if nothing downloaded.
+     */
+    private long bytesPerSecond() {
+        if (updateEngine == null || downloadStartTime == 0) {
+            return 0;
+        }
+        long millis = Math.max(1, TimeUnit.MILLISECONDS.convert(System.nanoTime() - downloadStartTime, TimeUnit.NANOSECONDS));
+        return updateEngine.getDownloadedBytes() * 1000 / millis;
+    }
+
+    /**
+     * Start a progress line.
+     *
+     * @param type What happened.
+     * @return The progress line.
+     */
+    private JSONObject event(String type) {
+        JSONObject event = new JSONObject();
+        event.put("event", type);
+        return event;
+    }
+
+    /**
+     * Print a progress line.
+     *
+     * @param event The progress line.
+     */
+    private void print(JSONObject event) {
+        System.out.println(event);
+    }
+
+    @Override
+    public void statusChanged(String status) {
+        print(event("status").put("status", status));
+    }
+
+    @Override
+    public void fileChecked(String key, int checked, int total) {
+        print(event("checked").put("file", key).put("checked", checked).put("total", total));
+    }
+
+    @Override
+    public void downloadStarted(int files) {
+        downloadStartTime = System.nanoTime();
+        print(event("download").put("files", files));
+    }
+
+    @Override
+    public void downloadProgress(int percent) {
+        if (percent <= lastPercent.get()) {
+            return;
+        }
+        // downloads report from several threads, keep the lines in order
+        synchronized (lastPercent) {
+            if (percent <= lastPercent.get()) {
+                return;
+            }
+            lastPercent.set(percent);
+            print(event("progress").put("percent", percent).put("bytes", updateEngine.getDownloadedBytes()).put("bytesPerSecond", bytesPerSecond()));
+        }
+    }
+
+    @Override
+    public void stageStarted(UpdatePipeline.Stage stage, String key) {
+        print(event("stage").put("stage", stage.name()).put("file", key));
+    }
+
+    @Override
+    public void fileCommitted(String key, int committed, int total) {
+        print(event("committed").put("file", key).put("committed", committed).put("total", total));
+    }
+}
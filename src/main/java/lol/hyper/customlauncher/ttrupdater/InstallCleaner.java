@@ -0,0 +1,165 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class InstallCleaner {
+
+    /**
+     * The InstallCleaner logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * TTR install path.
+     */
+    private final File installPath;
+    /**
+     * The patch cache, every file in it was put there by the updater.
+     */
+    private final PatchCache patchCache;
+
+    /**
+     * Creates an InstallCleaner.
+     *
+     * @param installPath The TTR install path.
+     * @param patchCache  The patch cache.
+     */
+    public InstallCleaner(File installPath, PatchCache patchCache) {
+        this.installPath = installPath;
+        this.patchCache = patchCache;
+    }
+
+    /**
+     * Find files the updater used to manage that are no longer in the manifest.
+     * Only files from an older manifest or the patch cache are looked at, so anything the user put in the folder is left alone.
+     *
+     * @param manifest           The current manifest.
+     * @param previouslyManaged  Files from the last manifest we applied.
+     * @return What can be removed.
+     */
+    public OrphanReport findOrphans(JSONObject manifest, Collection<String> previouslyManaged) {
+        Set<String> cacheKeys = patchCache.getKeys();
+        Set<String> candidates = new TreeSet<>(previouslyManaged);
+        candidates.addAll(cacheKeys);
+        // a file that is only for another OS is still TTR's, don't touch it
+        candidates.removeAll(manifest.keySet());
+
+        List<String> files = new ArrayList<>();
+        List<String> staleCacheKeys = new ArrayList<>();
+        long reclaimableBytes = 0;
+        for (String key : candidates) {
+            if (cacheKeys.contains(key)) {
+                staleCacheKeys.add(key);
+            }
+            File file = new File(installPath, key);
+            if (!file.isFile() || !isInsideInstall(file)) {
+                continue;
+            }
+            files.add(key);
+            reclaimableBytes += file.length();
+        }
+        return new OrphanReport(files, staleCacheKeys, reclaimableBytes);
+    }
+
+    /**
+     * Find orphans again, keeping only the ones in an earlier report.
+     * The install may have been updated since that report was made, so a file it listed might be in use again.
+     *
+     * @param manifest The current manifest.
+     * @param earlier  The earlier report, usually the one the user agreed to.
+     * @return What can still be removed.
+     */
+    public OrphanReport recheck(JSONObject manifest, OrphanReport earlier) {
+        OrphanReport current = findOrphans(manifest, Set.of());
+        List<String> files = new ArrayList<>(current.files());
+        files.retainAll(earlier.files());
+        List<String> cacheKeys = new ArrayList<>(current.cacheKeys());
+        cacheKeys.retainAll(earlier.cacheKeys());
+        long reclaimableBytes = 0;
+        for (String key : files) {
+            reclaimableBytes += new File(installPath, key).length();
+        }
+        return new OrphanReport(files, cacheKeys, reclaimableBytes);
+    }
+
+    /**
+     * Delete orphaned files and forget their cached hashes.
+     *
+     * @param report The files to remove.
+     */
+    public void remove(OrphanReport report) {
+        for (String key : report.files()) {
+            File file = new File(installPath, key);
+            if (file.delete()) {
+                logger.info("Removed " + file.getAbsolutePath() + ", it is no longer used by TTR.");
+            } else {
+                logger.warn("Unable to remove " + file.getAbsolutePath());
+            }
+        }
+        for (String key : report.cacheKeys()) {
+            patchCache.remove(key);
+        }
+        patchCache.save();
+    }
+
+    /**
+     * Make sure a file is actually inside the install folder, a manifest entry like "../file" should never delete anything.
+     *
+     * @param file The file.
+     * @return True if it is inside the install folder.
+     */
+    private boolean isInsideInstall(File file) {
+        try {
+            return file.getCanonicalPath().startsWith(installPath.getCanonicalPath() + File.separator);
+        } catch (IOException exception) {
+            logger.warn("Unable to resolve " + file.getAbsolutePath(), exception);
+            return false;
+        }
+    }
+
+    /**
+     * Files that are no longer in the manifest.
+     *
+     * @param files             Files on disk that can be deleted, relative to the install path.
+     * @param cacheKeys         Patch cache entries that can be removed.
+     * @param reclaimableBytes  How much space deleting the files frees.
+     */
+    public record OrphanReport(List<String> files, List<String> cacheKeys, long reclaimableBytes) {
+
+        /**
+         * Is there anything to clean up?
+         *
+         * @return True if there is nothing to remove.
+         */
+        public boolean isEmpty() {
+            return files.isEmpty() && cacheKeys.isEmpty();
+        }
+    }
+}
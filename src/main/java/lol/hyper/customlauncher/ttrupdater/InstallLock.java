@@ -0,0 +1,156 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class InstallLock implements AutoCloseable {
+
+    /**
+     * The file that is locked, inside the install folder.
+     */
+    public static final String LOCK_FILE_NAME = ".launcher.lock";
+    /**
+     * How often we check if the lock was let go while waiting for it.
+     */
+    private static final long POLL_MILLIS = 500;
+    /**
+     * The InstallLock logger.
+     */
+    private static final Logger logger = LogManager.getLogger(InstallLock.class);
+    /**
+     * Keeps threads in this launcher out. A file lock belongs to the whole process, so it can't do that by itself.
+     */
+    private static final ReentrantLock processLock = new ReentrantLock();
+    /**
+     * The open lock file, while the lock is held.
+     */
+    private static FileChannel channel;
+    /**
+     * Keeps other launchers out, while the lock is held.
+     */
+    private static FileLock fileLock;
+
+    /**
+     * Has this hold been let go? It's only let go once.
+     */
+    private boolean closed = false;
+
+    /**
+     * Created once the lock is held.
+     */
+    private InstallLock() {
+    }
+
+    /**
+     * Lock the install, so nothing else in this launcher or any other launcher can check, update, roll back or clean it up.
+     * The thread that takes the lock has to be the one that closes it. A thread that already holds it can take it again.
+     *
+     * @param installPath The TTR install path.
+     * @return The lock, or null if something else is using the install.
+     */
+    public static InstallLock tryAcquire(File installPath) throws IOException {
+        if (!processLock.tryLock()) {
+            return null;
+        }
+        boolean locked = false;
+        try {
+            locked = processLock.getHoldCount() > 1 || lockFile(installPath);
+        } finally {
+            if (!locked) {
+                processLock.unlock();
+            }
+        }
+        return locked ? new InstallLock() : null;
+    }
+
+    /**
+     * Lock the install, waiting for anything else using it to finish.
+     *
+     * @param installPath The TTR install path.
+     * @return The lock.
+     */
+    public static InstallLock acquire(File installPath) throws IOException, InterruptedException {
+        InstallLock installLock = tryAcquire(installPath);
+        if (installLock == null) {
+            logger.info("Something else is using " + installPath.getAbsolutePath() + ", waiting for it to finish.");
+        }
+        while (installLock == null) {
+            Thread.sleep(POLL_MILLIS);
+            installLock = tryAcquire(installPath);
+        }
+        return installLock;
+    }
+
+    /**
+     * Lock the lock file, so other launchers stay out.
+     *
+     * @param installPath The TTR install path.
+     * @return False if another launcher has it locked.
+     */
+    private static boolean lockFile(File installPath) throws IOException {
+        FileChannel opened = FileChannel.open(new File(installPath, LOCK_FILE_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock locked;
+        try {
+            locked = opened.tryLock();
+        } catch (IOException | RuntimeException exception) {
+            opened.close();
+            throw exception;
+        }
+        if (locked == null) {
+            opened.close();
+            return false;
+        }
+        channel = opened;
+        fileLock = locked;
+        return true;
+    }
+
+    /**
+     * Let go of the lock. Other launchers can take it once every hold in this launcher is let go.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (processLock.getHoldCount() == 1) {
+                try {
+                    fileLock.release();
+                    channel.close();
+                } catch (IOException exception) {
+                    logger.warn("Unable to release the install lock file.", exception);
+                }
+                fileLock = null;
+                channel = null;
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.ConfigHandler;
+import lol.hyper.customlauncher.tools.OSDetection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+public class IntegrityScrubber implements Runnable {
+
+    /**
+     * Where we save how far the scrub got, inside the install folder.
+     */
+    private static final String STATE_FILE_NAME = "scrubState.json";
+    /**
+     * How long the launcher has to be idle before we start reading files.
+     */
+    private static final long IDLE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * How long to wait after a full pass before starting the next one.
+     */
+    private static final long PASS_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    /**
+     * How much we read at once, kept small so the scrub never holds the disk for long.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The thread the scrub runs on, or null if it was never started.
+     */
+    private static Thread thread;
+    /**
+     * Was the scrubber started? It's only resumed if it was.
+     */
+    private static boolean started;
+    /**
+     * How many things (updates, games, clean ups) are using the install right now.
+     */
+    private static int pauses;
+
+    /**
+     * The IntegrityScrubber logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * TTR install path.
+     */
+    private final File installPath;
+    /**
+     * The file we save how far the scrub got to.
+     */
+    private final File stateFile;
+    /**
+     * Keeps the scrub within its read budget.
+     */
+    private final BandwidthLimiter bandwidthLimiter;
+    /**
+     * How fast we read files in bytes per second. 0 means the scrubber is off.
+     */
+    private final long bytesPerSecond;
+
+    /**
+     * Creates an IntegrityScrubber.
+     *
+     * @param configHandler The config, used for the install path and read speed.
+     */
+    private IntegrityScrubber(ConfigHandler configHandler) {
+        this.installPath = configHandler.getInstallPath();
+        this.stateFile = new File(installPath, STATE_FILE_NAME);
+        this.bytesPerSecond = configHandler.getScrubSpeedLimit() * 1024;
+        this.bandwidthLimiter = new BandwidthLimiter(bytesPerSecond);
+    }
+
+    /**
+     * Start slowly re-hashing TTR files in the background while the launcher is idle.
+     * Files that don't match the last manifest we applied get fixed on the next update.
+     */
+    public static synchronized void start() {
+        started = true;
+        launch();
+    }
+
+    /**
+     * Stop the scrub while something else uses the install, and wait for it to stop so it doesn't write the patch cache at the same time.
+     * Every call has to be followed by {@link #resume()}.
+     */
+    public static void pause() {
+        Thread running;
+        synchronized (IntegrityScrubber.class) {
+            pauses++;
+            running = thread;
+        }
+        if (running == null) {
+            return;
+        }
+        running.interrupt();
+        boolean interrupted = false;
+        while (running.isAlive()) {
+            try {
+                running.join();
+            } catch (InterruptedException exception) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Let the scrub carry on once nothing else is using the install. It continues from the file it stopped at.
+     */
+    public static synchronized void resume() {
+        pauses = Math.max(0, pauses - 1);
+        launch();
+    }
+
+    /**
+     * Start the scrub thread if it was started, isn't paused, and isn't running already.
+     */
+    private static synchronized void launch() {
+        if (!started || pauses > 0 || (thread != null && thread.isAlive())) {
+            return;
+        }
+        thread = new Thread(new IntegrityScrubber(new ConfigHandler()), "IntegrityScrubber");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        if (bytesPerSecond <= 0 || !installPath.exists()) {
+            return;
+        }
+        try {
+            Thread.sleep(IDLE_DELAY_MILLIS);
+            // the background check hashes files without a cached hash, wait for it so we don't both write to the cache
+            BackgroundVerifier.waitForFinish();
+            scrub();
+        } catch (InterruptedException exception) {
+            logger.info("Integrity scrub paused: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Hash each file in the last manifest we applied, starting from where the last scrub stopped.
+     */
+    private void scrub() throws InterruptedException {
+        AppliedManifest lastApplied = AppliedManifest.load(installPath);
+        if (lastApplied == null) {
+            return;
+        }
+        JSONObject state = readState();
+        String position = state.optString("position", "");
+        long lastPass = state.optLong("lastPass", 0);
+        if (position.isEmpty() && System.currentTimeMillis() - lastPass < PASS_INTERVAL_MILLIS) {
+            logger.info("Last integrity scrub finished recently, skipping it.");
+            return;
+        }
+
+        // go through the files in a fixed order so we know where to continue from
+        JSONObject patches = lastApplied.getPatches();
+        SortedSet<String> keys = new TreeSet<>();
+        for (String key : patches.keySet()) {
+            if (patches.getJSONObject(key).getJSONArray("only").toList().stream().map(object -> Objects.toString(object, null)).anyMatch(OSDetection.osType::equals)) {
+                keys.add(key);
+            }
+        }
+        SortedSet<String> remaining = keys.tailSet(position);
+        logger.info("Scrubbing " + remaining.size() + " file(s) at " + bytesPerSecond / 1024 + " KB/s.");
+
+        int damaged = 0;
+        boolean finished = false;
+        try {
+            for (String key : remaining) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("Integrity scrub was interrupted");
+                }
+                position = key;
+                if (scrubFile(key, patches.getJSONObject(key).getString("hash"))) {
+                    damaged++;
+                }
+            }
+            finished = true;
+        } finally {
+            // if we stopped early, start with the file we were reading next time
+            saveState(finished ? "" : position, finished ? System.currentTimeMillis() : lastPass);
+        }
+        logger.info("Finished integrity scrub. " + damaged + " damaged file(s) will be fixed on the next update.");
+    }
+
+    /**
+     * Hash a file and cache its hash. A hash that doesn't match the manifest makes the updater download the file again.
+     * The install is only locked while the hash is cached, so a slow scrub never keeps another launcher waiting.
+     *
+     * @param key          The file name.
+     * @param expectedHash The hash from the manifest.
+     * @return True if the file is damaged.
+     */
+    private boolean scrubFile(String key, String expectedHash) throws InterruptedException {
+        File localFile = new File(installPath, key);
+        if (!localFile.exists()) {
+            // the updater already downloads missing files
+            return false;
+        }
+        long size = localFile.length();
+        long modified = localFile.lastModified();
+        String hash;
+        try {
+            hash = hash(localFile);
+        } catch (InterruptedIOException exception) {
+            throw new InterruptedException("Integrity scrub was interrupted");
+        } catch (IOException | NoSuchAlgorithmException exception) {
+            logger.warn("Unable to scrub " + localFile.getAbsolutePath(), exception);
+            return false;
+        }
+        // another launcher may be updating the install, the patch cache is opened fresh while we hold the lock
+        try (InstallLock installLock = InstallLock.tryAcquire(installPath)) {
+            if (installLock == null) {
+                throw new InterruptedException("The install is in use");
+            }
+            // don't cache a hash for a file that changed while we read it
+            if (localFile.length() != size || localFile.lastModified() != modified) {
+                return false;
+            }
+            PatchCache patchCache = new PatchCache(installPath);
+            patchCache.put(key, localFile, hash);
+            patchCache.save();
+        } catch (IOException exception) {
+            logger.warn("Unable to lock the install, not caching the hash of " + localFile.getAbsolutePath(), exception);
+            return false;
+        }
+        if (hash.equalsIgnoreCase(expectedHash)) {
+            return false;
+        }
+        logger.warn(key + " does not match the last manifest we applied and will be fixed on the next update.");
+        return true;
+    }
+
+    /**
+     * Calculates the SHA1 of a file without going over the read budget.
+     *
+     * @param file The file to calculate.
+     * @return String representing the SHA1.
+     */
+    private String hash(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        byte[] buffer = BufferPool.acquireArray(CHUNK_SIZE);
+        long read = 0;
+        try (InputStream inputStream = new ThrottledInputStream(new FileInputStream(file), bandwidthLimiter, bytes -> {})) {
+            int n;
+            while ((n = inputStream.read(buffer, 0, Math.min(buffer.length, CHUNK_SIZE))) != -1) {
+                sha1.update(buffer, 0, n);
+                read += n;
+            }
+        } finally {
+            BufferPool.release(buffer, read);
+        }
+        return PatchVerifier.toHex(sha1.digest());
+    }
+
+    /**
+     * Read how far the last scrub got.
+     *
+     * @return The saved state, or an empty state to start a new pass if there isn't one or it can't be read.
+     */
+    private JSONObject readState() {
+        if (!stateFile.exists()) {
+            return new JSONObject();
+        }
+        try {
+            return new JSONObject(Files.readString(stateFile.toPath(), StandardCharsets.UTF_8));
+        } catch (IOException | JSONException exception) {
+            logger.warn("Unable to read scrub state " + stateFile.getAbsolutePath() + ", starting a new pass.", exception);
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * Save how far the scrub got. The state is written next to the state file, then moved over it,
+     * so being stopped halfway through never leaves a broken state behind.
+     *
+     * @param position The file to continue from, or empty to start a new pass.
+     * @param lastPass When the last full pass finished.
+     */
+    private void saveState(String position, long lastPass) {
+        JSONObject state = new JSONObject();
+        state.put("position", position);
+        state.put("lastPass", lastPass);
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream output = new FileOutputStream(tempFile)) {
+                output.write(state.toString().getBytes(StandardCharsets.UTF_8));
+                output.getFD().sync();
+            }
+            try {
+                Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException exception) {
+                Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException exception) {
+            logger.warn("Unable to save scrub state " + stateFile.getAbsolutePath(), exception);
+        }
+    }
+}
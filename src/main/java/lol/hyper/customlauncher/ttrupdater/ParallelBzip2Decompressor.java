@@ -0,0 +1,465 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ParallelBzip2Decompressor implements Closeable {
+
+    /**
+     * The magic number at the start of every bzip2 block, pi.
+     */
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    /**
+     * The magic number at the end of a bzip2 stream, sqrt(pi).
+     */
+    private static final long END_MAGIC = 0x177245385090L;
+    /**
+     * Masks a long down to the 48 bits of a magic number.
+     */
+    private static final long MAGIC_MASK = 0xFFFFFFFFFFFFL;
+    /**
+     * Files smaller than this are not worth splitting.
+     */
+    private static final long MIN_PARALLEL_SIZE = 1024 * 1024;
+    /**
+     * The ParallelBzip2Decompressor logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * How many blocks we decode at the same time.
+     */
+    private final int threads;
+    /**
+     * Scans and decodes blocks. Every file being extracted shares it, so there are never more than {@link #threads} decoding.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Creates a ParallelBzip2Decompressor. Its threads are only started once a file is split, and stop when it is closed.
+     *
+     * @param threads How many blocks to decode at the same time.
+     */
+    public ParallelBzip2Decompressor(int threads) {
+        this.threads = Math.max(1, threads);
+        this.pool = Executors.newFixedThreadPool(this.threads);
+    }
+
+    /**
+     * Stop the decoding threads.
+     */
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Extract a bzip2 file. The file is split into its blocks, which are decoded on several threads and written back in order.
+     * Files that can't be split, or fail to extract in parallel, are extracted the normal way.
+     * An interrupt is passed on instead, since it means the extraction is being stopped.
+     * The SHA1 of the output is calculated as it is written, so the file does not need to be read again to verify it.
+     *
+     * @param input        The compressed file.
+     * @param output       The file to extract to.
+     * @param expectedSize How big the extracted file is expected to be, 0 if we don't know.
+     * @return The SHA1 of the extracted file.
+     */
+    public String decompress(File input, File output, long expectedSize) throws IOException, NoSuchAlgorithmException {
+        if (threads > 1 && input.length() >= MIN_PARALLEL_SIZE) {
+            try {
+                String hash = decompressParallel(input, output, expectedSize);
+                if (hash != null) {
+                    return hash;
+                }
+            } catch (InterruptedIOException | ClosedByInterruptException exception) {
+                throw exception;
+            } catch (IOException exception) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw exception;
+                }
+                logger.warn("Unable to extract " + input.getAbsolutePath() + " in parallel, falling back to a single stream.", exception);
+            }
+        }
+        return decompressSingle(input, output, expectedSize);
+    }
+
+    /**
+     * Extract a bzip2 file as one stream on this thread.
+     *
+     * @param input        The compressed file.
+     * @param output       The file to extract to.
+     * @param expectedSize How big the extracted file is expected to be, 0 if we don't know.
+     * @return The SHA1 of the extracted file.
+     */
+    private String decompressSingle(File input, File output, long expectedSize) throws IOException, NoSuchAlgorithmException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        byte[] buffer = BufferPool.acquireArray(expectedSize);
+        long extracted = 0;
+        int len;
+
+        try (BZip2CompressorInputStream in = new BZip2CompressorInputStream(new BufferedInputStream(new FileInputStream(input)), true); OutputStream out = new PreallocatedFileWriter(output, expectedSize)) {
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                sha1.update(buffer, 0, len);
+                extracted += len;
+            }
+        } finally {
+            BufferPool.release(buffer, extracted);
+        }
+        return PatchVerifier.toHex(sha1.digest());
+    }
+
+    /**
+     * Extract a bzip2 file by decoding its blocks on several threads.
+     *
+     * @param input        The compressed file.
+     * @param output       The file to extract to.
+     * @param expectedSize How big the extracted file is expected to be, 0 if we don't know.
+     * @return The SHA1 of the extracted file, or null if it can't be split.
+     */
+    private String decompressParallel(File input, File output, long expectedSize) throws IOException, NoSuchAlgorithmException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        // blocks still decoding when this returns early are cancelled, they would read a closed file
+        Deque<Future<?>> inFlight = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(4);
+            readFully(channel, header, 0);
+            byte[] headerBytes = header.array();
+            if (headerBytes[0] != 'B' || headerBytes[1] != 'Z' || headerBytes[2] != 'h' || headerBytes[3] < '1' || headerBytes[3] > '9') {
+                return null;
+            }
+
+            // find where each block starts, and where the stream ends
+            List<Long> blockStarts = new ArrayList<>();
+            List<Long> endMarkers = new ArrayList<>();
+            scanMarkers(channel, size, inFlight, blockStarts, endMarkers);
+
+            // we can only split a single stream that is made of more than one block
+            if (blockStarts.size() < 2 || blockStarts.get(0) != 32 || endMarkers.size() != 1) {
+                return null;
+            }
+            long streamEnd = endMarkers.get(0);
+            if (blockStarts.get(blockStarts.size() - 1) >= streamEnd || (streamEnd + 48 + 32 + 7) / 8 != size) {
+                return null;
+            }
+            logger.info("Extracting " + input.getAbsolutePath() + " as " + blockStarts.size() + " blocks on " + threads + " thread(s).");
+
+            int expectedCRC = readBits(channel, streamEnd + 48, 32);
+            int combinedCRC = 0;
+            // only keep a few blocks in memory at once, they get written in order
+            int window = threads * 2;
+            Deque<Future<byte[]>> blocks = new ArrayDeque<>();
+            try (OutputStream out = new PreallocatedFileWriter(output, expectedSize)) {
+                int next = 0;
+                while (next < blockStarts.size() || !blocks.isEmpty()) {
+                    while (next < blockStarts.size() && blocks.size() < window) {
+                        long start = blockStarts.get(next);
+                        long end = next + 1 < blockStarts.size() ? blockStarts.get(next + 1) : streamEnd;
+                        Future<byte[]> block = pool.submit(() -> decodeBlock(channel, headerBytes[3], start, end));
+                        blocks.add(block);
+                        inFlight.add(block);
+                        next++;
+                    }
+                    byte[] block;
+                    try {
+                        Future<byte[]> first = blocks.removeFirst();
+                        inFlight.remove(first);
+                        block = first.get();
+                    } catch (ExecutionException exception) {
+                        throw new IOException("Unable to decode bzip2 block", exception.getCause());
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Extraction was interrupted");
+                    }
+                    out.write(block, 4, block.length - 4);
+                    sha1.update(block, 4, block.length - 4);
+                    int blockCRC = ByteBuffer.wrap(block, 0, 4).getInt();
+                    combinedCRC = ((combinedCRC << 1) | (combinedCRC >>> 31)) ^ blockCRC;
+                }
+            }
+            if (combinedCRC != expectedCRC) {
+                throw new IOException("Stream CRC does not match for " + input.getAbsolutePath());
+            }
+            return PatchVerifier.toHex(sha1.digest());
+        } finally {
+            for (Future<?> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Find every block and end of stream marker in the file. The file is split into ranges which are scanned at the same time.
+     * Markers are not byte aligned, so every bit offset is checked.
+     *
+     * @param channel     The compressed file.
+     * @param size        The size of the file.
+     * @param inFlight    Where the scans are kept until they finish, so they can be cancelled.
+     * @param blockStarts Where the bit offset of each block gets stored.
+     * @param endMarkers  Where the bit offset of each end of stream marker gets stored.
+     */
+    private void scanMarkers(FileChannel channel, long size, Deque<Future<?>> inFlight, List<Long> blockStarts, List<Long> endMarkers) throws IOException {
+        long rangeSize = Math.max(1024 * 1024, (size + threads - 1) / threads);
+        List<Future<long[][]>> ranges = new ArrayList<>();
+        for (long rangeStart = 4; rangeStart < size; rangeStart += rangeSize) {
+            long start = rangeStart;
+            long end = Math.min(size, rangeStart + rangeSize);
+            Future<long[][]> range = pool.submit(() -> scanRange(channel, size, start, end));
+            ranges.add(range);
+            inFlight.add(range);
+        }
+        for (Future<long[][]> range : ranges) {
+            long[][] found;
+            try {
+                found = range.get();
+                inFlight.remove(range);
+            } catch (ExecutionException exception) {
+                throw new IOException("Unable to scan bzip2 file", exception.getCause());
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Extraction was interrupted");
+            }
+            for (long position : found[0]) {
+                blockStarts.add(position);
+            }
+            for (long position : found[1]) {
+                endMarkers.add(position);
+            }
+        }
+    }
+
+    /**
+     * Find the markers that start inside a range of the file.
+     *
+     * @param channel    The compressed file.
+     * @param size       The size of the file.
+     * @param rangeStart The first byte of the range.
+     * @param rangeEnd   The byte after the range.
+     * @return The bit offsets of the block markers and the end of stream markers.
+     */
+    private long[][] scanRange(FileChannel channel, long size, long rangeStart, long rangeEnd) throws IOException {
+        List<Long> blocks = new ArrayList<>();
+        List<Long> ends = new ArrayList<>();
+        long firstBit = rangeStart * 8;
+        long lastBit = rangeEnd * 8;
+        // a marker that starts at the end of the range can reach 7 bytes past it
+        long readEnd = Math.min(size, rangeEnd + 7);
+        // the scan reads one byte at a time, which is quicker on a heap buffer
+        byte[] array = BufferPool.acquireArray(readEnd - rangeStart);
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        long bits = 0;
+        long position = rangeStart;
+        try {
+            while (position < readEnd) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), readEnd - position));
+                readFully(channel, buffer, position);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    bits = (bits << 8) | (buffer.get() & 0xFF);
+                    position++;
+                    long bitPosition = position * 8;
+                    for (int shift = 0; shift < 8; shift++) {
+                        long markerStart = bitPosition - shift - 48;
+                        if (markerStart < firstBit || markerStart >= lastBit) {
+                            continue;
+                        }
+                        long candidate = (bits >>> shift) & MAGIC_MASK;
+                        if (candidate == BLOCK_MAGIC) {
+                            blocks.add(markerStart);
+                        } else if (candidate == END_MAGIC) {
+                            ends.add(markerStart);
+                        }
+                    }
+                }
+            }
+        } finally {
+            BufferPool.release(array, readEnd - rangeStart);
+        }
+        return new long[][]{blocks.stream().mapToLong(Long::longValue).sorted().toArray(), ends.stream().mapToLong(Long::longValue).sorted().toArray()};
+    }
+
+    /**
+     * Decode one block by turning it into its own bzip2 stream.
+     *
+     * @param channel  The compressed file.
+     * @param level    The block size digit from the file's header.
+     * @param startBit The bit offset of the block's marker.
+     * @param endBit   The bit offset after the block.
+     * @return The block's CRC in the first 4 bytes, followed by the decoded data.
+     */
+    private byte[] decodeBlock(FileChannel channel, byte level, long startBit, long endBit) throws IOException {
+        long firstByte = startBit / 8;
+        long lastByte = (endBit + 7) / 8;
+        ByteBuffer source = ByteBuffer.allocate((int) (lastByte - firstByte));
+        readFully(channel, source, firstByte);
+        byte[] sourceBytes = source.array();
+        int shift = (int) (startBit % 8);
+        long bitCount = endBit - startBit;
+
+        // header, the block shifted to be byte aligned, end of stream marker and the stream CRC
+        BitWriter stream = new BitWriter((int) (4 + bitCount / 8 + 12));
+        stream.writeBits('B', 8);
+        stream.writeBits('Z', 8);
+        stream.writeBits('h', 8);
+        stream.writeBits(level, 8);
+        int fullBytes = (int) (bitCount / 8);
+        for (int i = 0; i < fullBytes; i++) {
+            int value = shift == 0 ? sourceBytes[i] & 0xFF : ((sourceBytes[i] << shift) | ((sourceBytes[i + 1] & 0xFF) >>> (8 - shift))) & 0xFF;
+            stream.writeBits(value, 8);
+        }
+        for (long bit = (long) fullBytes * 8; bit < bitCount; bit++) {
+            long sourceBit = shift + bit;
+            stream.writeBits((sourceBytes[(int) (sourceBit / 8)] >>> (7 - (sourceBit % 8))) & 1, 1);
+        }
+        // a single block stream's CRC is the same as the block's CRC
+        int blockCRC = stream.readInt(4 + 6);
+        stream.writeBits(END_MAGIC >>> 24, 24);
+        stream.writeBits(END_MAGIC & 0xFFFFFF, 24);
+        stream.writeBits(blockCRC, 32);
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(1024 * 1024);
+        decoded.write(ByteBuffer.allocate(4).putInt(blockCRC).array());
+        try (BZip2CompressorInputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(stream.toByteArray()))) {
+            in.transferTo(decoded);
+        }
+        return decoded.toByteArray();
+    }
+
+    /**
+     * Read bits from the file.
+     *
+     * @param channel  The file.
+     * @param startBit The bit offset to start at.
+     * @param count    How many bits to read, up to 32.
+     * @return The bits.
+     */
+    private static int readBits(FileChannel channel, long startBit, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(5);
+        long firstByte = startBit / 8;
+        buffer.limit((int) Math.min(5, channel.size() - firstByte));
+        readFully(channel, buffer, firstByte);
+        long value = 0;
+        for (int i = 0; i < 5; i++) {
+            value = (value << 8) | (i < buffer.limit() ? buffer.get(i) & 0xFF : 0);
+        }
+        int shift = (int) (40 - (startBit % 8) - count);
+        return (int) ((value >>> shift) & ((1L << count) - 1));
+    }
+
+    /**
+     * Fill a buffer from the file, starting at a position.
+     *
+     * @param channel  The file.
+     * @param buffer   The buffer to fill.
+     * @param position Where in the file to start reading.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of bzip2 file");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes a stream of bits, most significant bit first.
+     */
+    private static class BitWriter {
+
+        /**
+         * The bytes written so far.
+         */
+        private byte[] bytes;
+        /**
+         * How many bits have been written.
+         */
+        private long bitCount = 0;
+
+        /**
+         * Creates a BitWriter.
+         *
+         * @param capacity How many bytes to make room for.
+         */
+        BitWriter(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        /**
+         * Write the lowest bits of a value.
+         *
+         * @param value The value to write.
+         * @param count How many bits to write, up to 32.
+         */
+        void writeBits(long value, int count) {
+            if (count == 8 && bitCount % 8 == 0) {
+                int byteIndex = (int) (bitCount / 8);
+                if (byteIndex >= bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                bytes[byteIndex] = (byte) value;
+                bitCount += 8;
+                return;
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                int byteIndex = (int) (bitCount / 8);
+                if (byteIndex >= bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                if (((value >>> i) & 1) != 0) {
+                    bytes[byteIndex] |= (byte) (0x80 >>> (bitCount % 8));
+                }
+                bitCount++;
+            }
+        }
+
+        /**
+         * Read 4 bytes that were already written.
+         *
+         * @param offset The byte to start at.
+         * @return The bytes as an int.
+         */
+        int readInt(int offset) {
+            return ByteBuffer.wrap(bytes, offset, 4).getInt();
+        }
+
+        /**
+         * Get the bytes written so far. The last byte is padded with zeros.
+         *
+         * @return The bytes.
+         */
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, (int) ((bitCount + 7) / 8));
+        }
+    }
+}
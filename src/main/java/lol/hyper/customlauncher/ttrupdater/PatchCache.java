@@ -0,0 +1,459 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.tools.JSONUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+public class PatchCache {
+
+    /**
+     * The first bytes of the cache file, "TTRC".
+     */
+    private final int MAGIC = 0x54545243;
+    /**
+     * The cache file format version.
+     */
+    private final int VERSION = 1;
+    /**
+     * Record type for caching a file's hash.
+     */
+    private final byte RECORD_PUT = 1;
+    /**
+     * Record type for removing a file from the cache.
+     */
+    private final byte RECORD_REMOVE = 2;
+    /**
+     * The journal is compacted once it has this many more records than there are cached files.
+     */
+    private final int COMPACT_THRESHOLD = 1024;
+    /**
+     * The PatchCache logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * The journal file. Every change to the cache is added to the end of this file.
+     */
+    private final File journalFile;
+    /**
+     * The cached files, keyed by file name.
+     */
+    private final Map<String, CacheEntry> entries = new HashMap<>();
+    /**
+     * Records that have not been written to the journal yet.
+     */
+    private final List<byte[]> pendingRecords = new ArrayList<>();
+    /**
+     * How many records are in the journal.
+     */
+    private int journalRecords = 0;
+    /**
+     * How many lookups found a valid hash.
+     */
+    private long hits = 0;
+    /**
+     * How many lookups didn't find a valid hash.
+     */
+    private long misses = 0;
+
+    /**
+     * Loads the patch cache. If there is only an old patchCache.json, it is moved over to the new format.
+     *
+     * @param installPath The TTR install path.
+     */
+    public PatchCache(File installPath) {
+        this.journalFile = new File(installPath, "patchCache.bin");
+        File legacyFile = new File(installPath, "patchCache.json");
+        try {
+            if (journalFile.exists()) {
+                readJournal();
+            } else if (legacyFile.exists()) {
+                migrate(legacyFile);
+            }
+            if (journalRecords > entries.size() + COMPACT_THRESHOLD) {
+                compact();
+            }
+        } catch (IOException exception) {
+            logger.error("Unable to read patch cache " + journalFile.getAbsolutePath() + ", starting with an empty cache.", exception);
+            entries.clear();
+            pendingRecords.clear();
+            journalRecords = 0;
+            // a new journal gets written on the next save
+            if (!journalFile.delete() && journalFile.exists()) {
+                logger.error("Unable to delete broken patch cache " + journalFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Get the cached hash of a file. The hash is only returned if the file on disk has not changed since it was cached.
+     *
+     * @param key  The file name.
+     * @param file The file on disk.
+     * @return The cached hash, or null if the file needs to be hashed again.
+     */
+    public synchronized String getHash(String key, File file) {
+        String hash = lookup(key, file);
+        if (hash == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return hash;
+    }
+
+    /**
+     * Get how many lookups found a valid hash.
+     *
+     * @return The hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get how many lookups didn't find a valid hash.
+     *
+     * @return The misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Look up the cached hash of a file, making sure the file hasn't changed.
+     *
+     * @param key  The file name.
+     * @param file The file on disk.
+     * @return The cached hash, or null if the file needs to be hashed again.
+     */
+    private String lookup(String key, File file) {
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException exception) {
+            return null;
+        }
+        if (entry.size() != attributes.size()) {
+            logger.info("Cached size of " + key + " does not match.");
+            return null;
+        }
+        if (entry.modified() != attributes.lastModifiedTime().toMillis()) {
+            logger.info("Cached last modified time of " + key + " does not match.");
+            return null;
+        }
+        if (!Objects.equals(entry.fileKey(), fileKey(attributes))) {
+            logger.info("Cached file key of " + key + " does not match.");
+            return null;
+        }
+        return entry.hash();
+    }
+
+    /**
+     * Cache the hash of a file, along with the file's current size, last modified time and file key.
+     *
+     * @param key  The file name.
+     * @param file The file on disk.
+     * @param hash The file's hash.
+     */
+    public synchronized void put(String key, File file, String hash) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException exception) {
+            logger.warn("Unable to read attributes of " + file.getAbsolutePath() + ", not caching its hash.", exception);
+            remove(key);
+            return;
+        }
+        CacheEntry entry = new CacheEntry(hash, attributes.size(), attributes.lastModifiedTime().toMillis(), fileKey(attributes));
+        entries.put(key, entry);
+        pendingRecords.add(encodePut(key, entry));
+    }
+
+    /**
+     * Remove a file from the cache.
+     *
+     * @param key The file name.
+     */
+    public synchronized void remove(String key) {
+        if (entries.remove(key) != null) {
+            pendingRecords.add(encodeRemove(key));
+        }
+    }
+
+    /**
+     * Get every file name that has a cached hash.
+     *
+     * @return A copy of the cached file names.
+     */
+    public synchronized Set<String> getKeys() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    /**
+     * Write any changes to the end of the journal. Only the changes are written, not the whole cache.
+     */
+    public synchronized void save() {
+        if (pendingRecords.isEmpty()) {
+            return;
+        }
+        try {
+            if (!journalFile.exists()) {
+                compact();
+                return;
+            }
+            int size = 0;
+            for (byte[] record : pendingRecords) {
+                size += record.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (byte[] record : pendingRecords) {
+                buffer.put(record);
+            }
+            buffer.flip();
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            journalRecords += pendingRecords.size();
+            pendingRecords.clear();
+
+            if (journalRecords > entries.size() + COMPACT_THRESHOLD) {
+                compact();
+            }
+        } catch (IOException exception) {
+            logger.error("Unable to write patch cache " + journalFile.getAbsolutePath(), exception);
+        }
+    }
+
+    /**
+     * Rewrite the journal so it only has one record for each cached file.
+     * The new journal is written next to the old one, then moved over it.
+     */
+    private void compact() throws IOException {
+        File tempFile = new File(journalFile.getPath() + ".tmp");
+        try (FileOutputStream fileOutput = new FileOutputStream(tempFile); DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            for (Map.Entry<String, CacheEntry> entry : entries.entrySet()) {
+                output.write(encodePut(entry.getKey(), entry.getValue()));
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+        try {
+            Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        logger.info("Compacted patch cache from " + (journalRecords + pendingRecords.size()) + " to " + entries.size() + " records.");
+        journalRecords = entries.size();
+        pendingRecords.clear();
+    }
+
+    /**
+     * Read every record in the journal. If the launcher stopped while a record was being written,
+     * the broken record at the end is cut off so new records can be added after the last good one.
+     */
+    private void readJournal() throws IOException {
+        byte[] data = Files.readAllBytes(journalFile.toPath());
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < 8 || input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw new IOException("Patch cache has an unknown format");
+        }
+        long goodLength = 8;
+        while (goodLength < data.length) {
+            try {
+                int length = input.readInt();
+                if (length <= 0 || length > data.length - goodLength - 8) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                input.readFully(body);
+                int checksum = input.readInt();
+                if (checksum != crc(body)) {
+                    break;
+                }
+                applyRecord(body);
+                journalRecords++;
+                goodLength += 4 + length + 4;
+            } catch (EOFException exception) {
+                break;
+            }
+        }
+        if (goodLength < data.length) {
+            logger.warn("Patch cache has " + (data.length - goodLength) + " broken bytes at the end, removing them.");
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(goodLength);
+                channel.force(false);
+            }
+        }
+        logger.info("Loaded " + entries.size() + " cached hashes from " + journalRecords + " records.");
+    }
+
+    /**
+     * Apply a record from the journal to the cache.
+     *
+     * @param body The record's content.
+     */
+    private void applyRecord(byte[] body) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = input.readByte();
+        String key = input.readUTF();
+        if (type == RECORD_PUT) {
+            String hash = input.readUTF();
+            long size = input.readLong();
+            long modified = input.readLong();
+            String fileKey = input.readBoolean() ? input.readUTF() : null;
+            entries.put(key, new CacheEntry(hash, size, modified, fileKey));
+        } else if (type == RECORD_REMOVE) {
+            entries.remove(key);
+        } else {
+            throw new IOException("Unknown patch cache record type " + type);
+        }
+    }
+
+    /**
+     * Move the old patchCache.json over to the journal. Only entries that have a size,
+     * last modified time and file key are kept, since the others can't be trusted anyway.
+     *
+     * @param legacyFile The old patchCache.json.
+     */
+    private void migrate(File legacyFile) throws IOException {
+        logger.info("Moving " + legacyFile.getAbsolutePath() + " over to " + journalFile.getAbsolutePath());
+        JSONObject cacheJSON = new JSONObject(JSONUtils.readFile(legacyFile));
+        for (String key : cacheJSON.keySet()) {
+            JSONObject entry = cacheJSON.optJSONObject(key);
+            if (entry == null) {
+                continue;
+            }
+            entries.put(key, new CacheEntry(entry.getString("hash"), entry.getLong("size"), entry.getLong("modified"), entry.optString("fileKey", null)));
+        }
+        compact();
+        Files.delete(legacyFile.toPath());
+    }
+
+    /**
+     * Turn a put into a journal record.
+     *
+     * @param key   The file name.
+     * @param entry The cached file.
+     * @return The record's bytes.
+     */
+    private byte[] encodePut(String key, CacheEntry entry) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(body)) {
+            output.writeByte(RECORD_PUT);
+            output.writeUTF(key);
+            output.writeUTF(entry.hash());
+            output.writeLong(entry.size());
+            output.writeLong(entry.modified());
+            output.writeBoolean(entry.fileKey() != null);
+            if (entry.fileKey() != null) {
+                output.writeUTF(entry.fileKey());
+            }
+        } catch (IOException exception) {
+            // writing to memory does not fail
+            throw new UncheckedIOException(exception);
+        }
+        return frame(body.toByteArray());
+    }
+
+    /**
+     * Turn a remove into a journal record.
+     *
+     * @param key The file name.
+     * @return The record's bytes.
+     */
+    private byte[] encodeRemove(String key) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(body)) {
+            output.writeByte(RECORD_REMOVE);
+            output.writeUTF(key);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return frame(body.toByteArray());
+    }
+
+    /**
+     * Put the length in front of a record and its checksum after it.
+     *
+     * @param body The record's content.
+     * @return The full record.
+     */
+    private byte[] frame(byte[] body) {
+        return ByteBuffer.allocate(4 + body.length + 4).putInt(body.length).put(body).putInt(crc(body)).array();
+    }
+
+    /**
+     * Calculate the checksum of a record.
+     *
+     * @param body The record's content.
+     * @return The CRC32 of the record.
+     */
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Get the file key (inode on Linux) of a file.
+     *
+     * @param attributes The file's attributes.
+     * @return The file key, or null if the file system does not have them.
+     */
+    private static String fileKey(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return fileKey == null ? null : fileKey.toString();
+    }
+
+    /**
+     * @param hash     The file's SHA1.
+     * @param size     The file's size when it was hashed.
+     * @param modified The file's last modified time when it was hashed.
+     * @param fileKey  The file's key when it was hashed, or null if the file system does not have them.
+     */
+    private record CacheEntry(String hash, long size, long modified, String fileKey) {
+    }
+}
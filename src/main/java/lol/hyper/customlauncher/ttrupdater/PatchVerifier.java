@@ -0,0 +1,175 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+public class PatchVerifier {
+
+    /**
+     * Hex digits, uppercase to match what we have always stored.
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The PatchVerifier logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * TTR install path.
+     */
+    private final File installPath;
+    /**
+     * How many files we hash at the same time.
+     */
+    private final int threads;
+    /**
+     * Where hash times are recorded.
+     */
+    private final UpdateMetrics metrics;
+
+    /**
+     * Creates a PatchVerifier.
+     *
+     * @param installPath The TTR install path.
+     * @param threads     How many files to hash at the same time.
+     */
+    public PatchVerifier(File installPath, int threads) {
+        this(installPath, threads, new UpdateMetrics());
+    }
+
+    /**
+     * Creates a PatchVerifier that records how long each file takes to hash.
+     *
+     * @param installPath The TTR install path.
+     * @param threads     How many files to hash at the same time.
+     * @param metrics     Where hash times are recorded.
+     */
+    public PatchVerifier(File installPath, int threads, UpdateMetrics metrics) {
+        this.installPath = installPath;
+        this.threads = Math.max(1, threads);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Calculates the SHA1 of each file using a pool of workers.
+     *
+     * @param files    The files to hash, relative to the install path.
+     * @param progress Called on the calling thread after each file is hashed.
+     * @return The SHA1 of each file, keyed by the file name.
+     */
+    public Map<String, String> hashFiles(List<String> files, Consumer<String> progress) throws IOException, InterruptedException {
+        Map<String, String> hashes = new HashMap<>();
+        if (files.isEmpty()) {
+            return hashes;
+        }
+
+        int poolSize = Math.min(threads, files.size());
+        logger.info("Hashing " + files.size() + " file(s) using " + poolSize + " thread(s).");
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        CompletionService<Map.Entry<String, String>> completionService = new ExecutorCompletionService<>(pool);
+        try {
+            for (String key : files) {
+                completionService.submit(() -> {
+                    long hashStart = System.nanoTime();
+                    String hash = calcSHA1(new File(installPath, key));
+                    metrics.record(UpdateMetrics.Phase.HASH, System.nanoTime() - hashStart);
+                    long hashTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - hashStart, TimeUnit.NANOSECONDS);
+                    logger.info("Finished calculating SHA1 of " + key + ". Took " + hashTime + "ms.");
+                    return Map.entry(key, hash);
+                });
+            }
+
+            // merge the results on this thread as they come in
+            for (int i = 0; i < files.size(); i++) {
+                Map.Entry<String, String> result;
+                try {
+                    result = completionService.take().get();
+                } catch (ExecutionException exception) {
+                    Throwable cause = exception.getCause();
+                    if (cause instanceof IOException ioException) {
+                        throw ioException;
+                    }
+                    throw new IOException("Unable to calculate SHA1 hash", cause);
+                }
+                hashes.put(result.getKey(), result.getValue());
+                progress.accept(result.getKey());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return hashes;
+    }
+
+    /**
+     * Calculates the SHA1 of a file, reading it into a pooled direct buffer at explicit positions.
+     * The file is not memory mapped, since Windows keeps a mapped file locked until the mapping is garbage collected, and the update needs to replace it.
+     *
+     * @param file The file to calculate.
+     * @return String representing the SHA1.
+     */
+    public static String calcSHA1(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = BufferPool.acquireDirect(size);
+            long position = 0;
+            try {
+                int read;
+                while ((read = channel.read(buffer, position)) != -1) {
+                    position += read;
+                    buffer.flip();
+                    sha1.update(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                BufferPool.release(buffer, position);
+            }
+        }
+        return toHex(sha1.digest());
+    }
+
+    /**
+     * Turns a digest into the hex string format TTR uses.
+     *
+     * @param digest The digest bytes.
+     * @return The hex string.
+     */
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class PreallocatedFileWriter extends OutputStream {
+
+    /**
+     * The file being written.
+     */
+    private final FileChannel channel;
+    /**
+     * Holds data until a whole chunk is ready. It comes from the buffer pool and is sized for the file, writes always start on a multiple of its size.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * Where the buffered data goes in the file.
+     */
+    private long position;
+    /**
+     * Where the first write went, so we know how much this writer wrote.
+     */
+    private final long startPosition;
+    /**
+     * Has the writer been closed? The buffer goes back to the pool only once.
+     */
+    private boolean closed = false;
+
+    /**
+     * Creates a writer that replaces the file.
+     *
+     * @param file         The file to write.
+     * @param expectedSize How big the file is expected to be, 0 if we don't know.
+     */
+    public PreallocatedFileWriter(File file, long expectedSize) throws IOException {
+        this(file, expectedSize, false);
+    }
+
+    /**
+     * Creates a writer. The file's length is set to its expected size up front. This doesn't reserve any disk space,
+     * most file systems leave a sparse hole until the data is written. If less than that is written, the file is cut
+     * down to what was written when the writer is closed.
+     *
+     * @param file         The file to write.
+     * @param expectedSize How big the file is expected to be, 0 if we don't know.
+     * @param append       Should we add to the end of the file instead of replacing it?
+     */
+    public PreallocatedFileWriter(File file, long expectedSize, boolean append) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create folder " + parent.getAbsolutePath());
+        }
+        if (append) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            position = channel.size();
+        } else {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            position = 0;
+        }
+        startPosition = position;
+        if (expectedSize > position) {
+            // writing the last byte only sets the length, the rest stays a sparse hole until it is written
+            channel.write(ByteBuffer.wrap(new byte[1]), expectedSize - 1);
+        }
+        buffer = BufferPool.acquireDirect(expectedSize - position);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Write what is left and close the file. The file is not synced here, that is done once for every file when they are installed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            drain();
+            // drop the length we set up front but didn't write
+            channel.truncate(position);
+        } finally {
+            channel.close();
+            BufferPool.release(buffer, position - startPosition);
+        }
+    }
+
+    /**
+     * Write the buffered data to the file.
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+public class SharedStore {
+
+    /**
+     * The SharedStore logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * The store folder. Files are kept in it by their SHA1, which is also their name.
+     */
+    private final File storePath;
+
+    /**
+     * Creates a SharedStore. Several installs can use the same store, each file is only stored once.
+     * Installs hardlink to the store, so it has to be on the same drive as them.
+     *
+     * @param storePath The store folder.
+     */
+    public SharedStore(File storePath) {
+        this.storePath = storePath;
+    }
+
+    /**
+     * Get where a file with this hash is kept in the store.
+     * Files are split into folders by the first two characters of their hash, so no folder gets too big.
+     *
+     * @param hash The file's SHA1.
+     * @return Where the file is kept.
+     */
+    public File getObject(String hash) {
+        String name = hash.toLowerCase(Locale.ENGLISH);
+        return new File(new File(storePath, name.substring(0, 2)), name);
+    }
+
+    /**
+     * Put a file into the staging folder from the store, if the store has it.
+     * The file is hardlinked, or copied if the drive doesn't support that.
+     *
+     * @param hash        The file's SHA1.
+     * @param destination Where to put the file.
+     * @return True if the store had the file.
+     */
+    public boolean link(String hash, File destination) throws IOException {
+        File object = getObject(hash);
+        if (!object.isFile()) {
+            return false;
+        }
+        File parent = destination.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create folder " + parent.getAbsolutePath());
+        }
+        Files.deleteIfExists(destination.toPath());
+        try {
+            Files.createLink(destination.toPath(), object.toPath());
+        } catch (IOException | UnsupportedOperationException exception) {
+            logger.warn("Unable to hardlink " + object.getAbsolutePath() + ", copying it instead.", exception);
+            Files.copy(object.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    /**
+     * Add a verified file to the store, so other installs don't have to download it.
+     * Nothing happens if the store already has the file. Failures are only logged, the update doesn't depend on the store.
+     *
+     * @param hash The file's SHA1.
+     * @param file The file.
+     */
+    public void add(String hash, File file) {
+        File object = getObject(hash);
+        if (object.exists()) {
+            return;
+        }
+        File parent = object.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            logger.warn("Unable to create folder " + parent.getAbsolutePath());
+            return;
+        }
+        try {
+            Files.createLink(object.toPath(), file.toPath());
+            logger.info("Added " + file.getName() + " to the shared store as " + object.getName());
+        } catch (FileAlreadyExistsException exception) {
+            // another launcher added it first
+        } catch (IOException | UnsupportedOperationException exception) {
+            logger.warn("Unable to add " + file.getAbsolutePath() + " to the shared store " + storePath.getAbsolutePath(), exception);
+        }
+    }
+
+    /**
+     * Remove a file from the store, used when the stored copy turns out to be broken.
+     *
+     * @param hash The file's SHA1.
+     */
+    public void remove(String hash) {
+        File object = getObject(hash);
+        try {
+            Files.deleteIfExists(object.toPath());
+        } catch (IOException exception) {
+            logger.warn("Unable to remove " + object.getAbsolutePath() + " from the shared store.", exception);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+public class StagedInstall {
+
+    /**
+     * The StagedInstall logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * TTR install path.
+     */
+    private final File installPath;
+    /**
+     * Where new files are written before they are installed.
+     */
+    private final File stagingFolder;
+    /**
+     * Where the files replaced by the last install are kept.
+     */
+    private final File backupFolder;
+    /**
+     * Lists the files the last install touched, and if it finished.
+     */
+    private final File installRecord;
+
+    /**
+     * Creates a StagedInstall.
+     *
+     * @param installPath The TTR install path.
+     */
+    public StagedInstall(File installPath) {
+        this.installPath = installPath;
+        this.stagingFolder = new File(installPath, ".update-staging");
+        this.backupFolder = new File(installPath, ".update-backup");
+        this.installRecord = new File(backupFolder, "install.json");
+    }
+
+    /**
+     * If the launcher stopped in the middle of installing files, roll them back.
+     * This has to happen before any installed file is checked, or a half installed file could be cached as good.
+     *
+     * @return True if an interrupted install was rolled back.
+     */
+    public boolean recover() throws IOException {
+        JSONObject record = readRecord();
+        if (record == null || record.optBoolean("complete")) {
+            return false;
+        }
+        logger.warn("The last update was interrupted while installing files, rolling it back.");
+        rollback();
+        return true;
+    }
+
+    /**
+     * Clear out the staging folder before files are written to it.
+     */
+    public void prepare() throws IOException {
+        if (stagingFolder.exists()) {
+            FileUtils.cleanDirectory(stagingFolder);
+        } else if (!stagingFolder.mkdirs()) {
+            throw new IOException("Unable to create staging folder " + stagingFolder.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Get where a file should be written before it is installed.
+     *
+     * @param key The file name.
+     * @return The staged file.
+     */
+    public File getStagedFile(String key) throws IOException {
+        File stagedFile = new File(stagingFolder, key);
+        File parent = stagedFile.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create staging folder " + parent.getAbsolutePath());
+        }
+        return stagedFile;
+    }
+
+    /**
+     * Move staged files into the install folder. The files they replace are kept so the install can be rolled back.
+     * If any file can't be installed, every file from this install is rolled back.
+     *
+     * @param keys The files to install.
+     */
+    public void install(Collection<String> keys) throws IOException {
+        // only keep the version from before this install
+        if (backupFolder.exists()) {
+            FileUtils.cleanDirectory(backupFolder);
+        } else if (!backupFolder.mkdirs()) {
+            throw new IOException("Unable to create backup folder " + backupFolder.getAbsolutePath());
+        }
+
+        // the staged files are written without syncing, make sure they are all on disk before any of them go live
+        long syncStart = System.nanoTime();
+        for (String key : keys) {
+            sync(new File(stagingFolder, key));
+        }
+        logger.info("Synced " + keys.size() + " staged file(s). Took " + TimeUnit.MILLISECONDS.convert(System.nanoTime() - syncStart, TimeUnit.NANOSECONDS) + "ms.");
+
+        // write down what we are about to touch, so an interrupted install can be rolled back on the next launch
+        JSONObject files = new JSONObject();
+        for (String key : keys) {
+            files.put(key, new File(installPath, key).exists());
+        }
+        JSONObject record = new JSONObject();
+        record.put("complete", false);
+        record.put("files", files);
+        writeRecord(record);
+
+        try {
+            for (String key : keys) {
+                File liveFile = new File(installPath, key);
+                if (liveFile.exists()) {
+                    File backupFile = new File(backupFolder, key);
+                    File backupParent = backupFile.getParentFile();
+                    if (!backupParent.exists() && !backupParent.mkdirs()) {
+                        throw new IOException("Unable to create backup folder " + backupParent.getAbsolutePath());
+                    }
+                    move(liveFile.toPath(), backupFile.toPath());
+                }
+                File liveParent = liveFile.getParentFile();
+                if (!liveParent.exists() && !liveParent.mkdirs()) {
+                    throw new IOException("Unable to create folder " + liveParent.getAbsolutePath());
+                }
+                move(new File(stagingFolder, key).toPath(), liveFile.toPath());
+            }
+        } catch (IOException exception) {
+            logger.error("Unable to install files, rolling back.", exception);
+            rollback();
+            throw exception;
+        }
+
+        record.put("complete", true);
+        writeRecord(record);
+        logger.info("Installed " + keys.size() + " file(s).");
+    }
+
+    /**
+     * Put back the files that the last install replaced, and remove the ones it added.
+     */
+    public void rollback() throws IOException {
+        JSONObject record = readRecord();
+        if (record == null) {
+            logger.warn("There is no install to roll back.");
+            return;
+        }
+        JSONObject files = record.getJSONObject("files");
+        for (String key : files.keySet()) {
+            File liveFile = new File(installPath, key);
+            File backupFile = new File(backupFolder, key);
+            if (files.getBoolean(key)) {
+                // if there is no backup, the file was never replaced
+                if (backupFile.exists()) {
+                    move(backupFile.toPath(), liveFile.toPath());
+                }
+            } else {
+                Files.deleteIfExists(liveFile.toPath());
+            }
+        }
+        Files.deleteIfExists(installRecord.toPath());
+        logger.info("Rolled back " + files.length() + " file(s).");
+    }
+
+    /**
+     * Delete anything left in the staging folder.
+     */
+    public void discard() {
+        try {
+            FileUtils.deleteDirectory(stagingFolder);
+        } catch (IOException exception) {
+            logger.warn("Unable to delete staging folder " + stagingFolder.getAbsolutePath(), exception);
+        }
+    }
+
+    /**
+     * Move a file, atomically if the file system allows it.
+     *
+     * @param source      The file to move.
+     * @param destination Where to move it.
+     */
+    private void move(Path source, Path destination) throws IOException {
+        try {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Make sure a file's contents are on disk.
+     *
+     * @param file The file to sync.
+     */
+    private void sync(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Read the record of the last install.
+     *
+     * @return The record, or null if there isn't one.
+     */
+    private JSONObject readRecord() {
+        if (!installRecord.exists()) {
+            return null;
+        }
+        try {
+            return new JSONObject(Files.readString(installRecord.toPath(), StandardCharsets.UTF_8));
+        } catch (Exception exception) {
+            logger.error("Unable to read install record " + installRecord.getAbsolutePath(), exception);
+            return null;
+        }
+    }
+
+    /**
+     * Save the record of the current install, making sure it is on disk before any files are moved.
+     *
+     * @param record The record.
+     */
+    private void writeRecord(JSONObject record) throws IOException {
+        File tempRecord = new File(backupFolder, "install.json.tmp");
+        try (FileOutputStream output = new FileOutputStream(tempRecord)) {
+            output.write(record.toString().getBytes(StandardCharsets.UTF_8));
+            output.getFD().sync();
+        }
+        move(tempRecord.toPath(), installRecord.toPath());
+    }
+}
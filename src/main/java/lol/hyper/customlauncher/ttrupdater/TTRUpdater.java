@@ -21,43 +21,24 @@ import lol.hyper.customlauncher.ConfigHandler;
 import lol.hyper.customlauncher.CustomLauncherRewrite;
 import lol.hyper.customlauncher.tools.ExceptionWindow;
 import lol.hyper.customlauncher.tools.JSONUtils;
-import lol.hyper.customlauncher.tools.OSDetection;
 import lol.hyper.customlauncher.tools.PopUpWindow;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.io.FileUtils;
-import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.core5.http.HttpEntity;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 
 import javax.swing.*;
-import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
 import java.awt.*;
 import java.io.*;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
-import java.util.Objects;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.StringJoiner;
 
 public class TTRUpdater extends JFrame {
 
     /**
-     * The URL used for checking files. Not sure why this is a "txt" file if it returns a JSON.
+     * How often the window shows the latest progress.
      */
-    public final String PATCHES_BASE_URL = "https://cdn.toontownrewritten.com";
-    /**
-     * The URL used for storing downloads. This is the root URL, so pass in the file name.
-     */
-    public final String PATCHES_URL_DL = "https://download.toontownrewritten.com/patches/";
+    private static final int REFRESH_MILLIS = 100;
     /**
      * The TTRUpdater logger.
      */
@@ -79,11 +60,6 @@ public class TTRUpdater extends JFrame {
      */
     private File installPath;
 
-    /**
-     * Cache for patches/files. Stores files hashes.
-     */
-    private File cacheFile;
-
     /**
      * Creates the TTR updater window.
      */
@@ -129,11 +105,6 @@ public class TTRUpdater extends JFrame {
     public void checkUpdates(String manifest) {
         ConfigHandler configHandler = new ConfigHandler();
         installPath = configHandler.getInstallPath();
-        cacheFile = new File (installPath, "patchCache.json");
-
-        JSONObject cacheJSON;
-        if (!cacheFile.exists()) cacheJSON = new JSONObject();
-        else cacheJSON = new JSONObject(JSONUtils.readFile(cacheFile));
 
         // don't run the updater if the folder doesn't exist
         if (!installPath.exists()) {
@@ -144,248 +115,84 @@ public class TTRUpdater extends JFrame {
 
         logger.info("Starting TTRUpdater");
         // read the patches
-        String patchManifest = PATCHES_BASE_URL + manifest;
+        String patchManifest = configHandler.getPatchManifestURL() + manifest;
         JSONObject patches = JSONUtils.requestJSON(patchManifest);
         if (patches == null) {
             logger.error("patchesmanifest.txt returned null!");
             dispose();
             return;
         }
-        progressBar.setMaximum(patches.length());
-
-        ArrayList<String> filesToDownload = new ArrayList<>();
 
-        // this loops through the JSON
-        // key is the file name
-        for (String key : patches.keySet()) {
-            progressBar.setValue(progressBar.getValue() + 1);
-            JSONObject currentFile = patches.getJSONObject(key);
-            String onlineHash = currentFile.getString("hash");
-            // get the list of OS's the file is for
-            List<String> only = currentFile.getJSONArray("only").toList().stream().map(object -> Objects.toString(object, null)).toList();
-            // if we are running the OS the file is for, check it
-            if (only.contains(OSDetection.osType)) {
-                File localFile = new File(installPath, key);
-                updateStatus.setText("Checking file " + localFile.getName());
-                if (!localFile.exists()) {
-                    logger.info("-----------------------------------------------------------------------");
-                    logger.info(installPath.getAbsolutePath() + File.separator + key);
-                    logger.info("This file is missing and will be downloaded.");
-                    filesToDownload.add(key);
-                    continue;
-                }
-
-                // the file exists locally, check the SHA1 and compare it to TTR's
-                String localHash;
-                try {
-                    //If no hash is cached, fallback to calculating it
-                    if(cacheJSON.isNull(key)) {
-                        logger.info("No hash for " + key + " found in cache."); 
-                        logger.info("Calculating SHA1 hash of " + key + " from patch manifest.");
-                        long hashStart = System.nanoTime();
-
-                        localHash = calcSHA1(localFile);
-
-                        long hashTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - hashStart, TimeUnit.NANOSECONDS);
-                        logger.info("Finished calculating SHA1 of " + key + ". Took " + hashTime + "ms.");
-                    
-                        cacheJSON.put(key, localHash);
-                    }
-
-                    //Otherwise, just use the cached hash
-                    else localHash = cacheJSON.getString(key);
-                } catch (Exception exception) {
-                    logger.error("Unable to calculate SHA1 hash for file " + localFile.getAbsolutePath(), exception);
-                    new ExceptionWindow(exception);
-                    dispose();
-                    return;
-                }
-                logger.info("-----------------------------------------------------------------------");
-                logger.info(installPath.getAbsolutePath() + File.separator + key);
-                logger.info("Local hash: " + localHash.toLowerCase(Locale.ENGLISH));
-                logger.info("Expected hash: " + onlineHash);
-                logger.info("Type: " + OSDetection.osType);
-                if (!localHash.equalsIgnoreCase(onlineHash)) {
-                    filesToDownload.add(key);
-                }
+        // the workers only update counters, the window reads them a few times a second
+        UpdateProgress updateProgress = new UpdateProgress();
+        UpdateEngine updateEngine = new UpdateEngine(configHandler, configHandler.getPatchDownloadURL(), updateProgress);
+        updateProgress.setDownloadedBytes(updateEngine::getDownloadedBytes);
+        updateProgress.setDownloadFraction(updateEngine::getDownloadFraction);
+        Timer refreshTimer = new Timer(REFRESH_MILLIS, e -> showProgress(updateProgress.sample()));
+        refreshTimer.start();
+        // the scrubber writes to the patch cache too, stop it until we are done
+        IntegrityScrubber.pause();
+        InstallLock installLock = null;
+        try {
+            Map<String, String> filesToDownload;
+            try {
+                // clean ups and other launchers change the install too, wait for them to finish
+                updateProgress.statusChanged("Waiting for the install to be free...");
+                installLock = InstallLock.acquire(installPath);
+                filesToDownload = updateEngine.checkFiles(patches);
+            } catch (IOException | InterruptedException exception) {
+                logger.error("Unable to calculate SHA1 hashes for files in " + installPath.getAbsolutePath(), exception);
+                new ExceptionWindow(exception);
+                dispose();
+                return;
             }
-        }
-
-        logger.info("-----------------------------------------------------------------------");
-
-        // we store files we need to download in filesToDownload
-        // if there are files in that list, download them
-        int currentProgress = 0;
-        if (filesToDownload.size() > 0) {
-            totalUpdateStatus.setText(String.format("Progress: %d / %d", currentProgress, filesToDownload.size()));
-            File tempFolder = new File("temp");
-            if (!tempFolder.exists() && !tempFolder.mkdirs()) {
-                logger.error("Unable to create temp folder!");
-                new PopUpWindow(this, "Unable to create temp folder!");
+            try {
+                updateEngine.update(patches, filesToDownload);
+            } catch (IOException | InterruptedException exception) {
+                logger.error("Unable to download file", exception);
+                new PopUpWindow(this, "Unable to download file.");
                 dispose();
+                return;
             }
-
-            logger.info(filesToDownload.size() + " file(s) are going to be downloaded.");
-            logger.info(filesToDownload);
-
-            progressBar.setValue(0); // reset
-
-            // download each file
-            for (String fileToDownload : filesToDownload) {
-                // set the progress
-                progressBar.setMaximum(fileToDownload.length());
-                // get the file name from TTR to download
-                JSONObject file = patches.getJSONObject(fileToDownload);
-                String downloadName = file.getString("dl");
-
-                logger.info("Downloading " + PATCHES_URL_DL + downloadName);
-                updateStatus.setText("Downloading " + downloadName);
-                progressBar.setVisible(true);
-                progressBar.setValue(progressBar.getValue() + 1);
-
-                // build the download URL
-                URL downloadURL;
-                try {
-                    downloadURL = new URL(PATCHES_URL_DL + downloadName);
-                } catch (MalformedURLException exception) {
-                    logger.error("Invalid URL " + PATCHES_URL_DL + downloadName);
-                    new ExceptionWindow(exception);
-                    dispose();
-                    return;
-                }
-
-                // set the output to be in the temp folder
-                File downloadOutput = new File(tempFolder + File.separator + downloadName);
-                long downloadStart = System.nanoTime();
-                // download the file
-                if (!saveFile(downloadURL, downloadOutput)) {
-                    logger.error("Unable to download file " + downloadName);
-                    new PopUpWindow(this, "Unable to download file " + downloadName + ".");
-                    dispose();
-                }
-                long downloadTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - downloadStart, TimeUnit.NANOSECONDS);
-                logger.info("Finished downloading " + downloadOutput.getAbsolutePath() + ". Took " + downloadTime + "ms.");
-                updateStatus.setText("Finished downloading " + downloadName);
-
-                long startTime = System.nanoTime();
-                logger.info("Extracting " + downloadOutput.getAbsolutePath() + " to " + installPath + File.separator + fileToDownload);
-                updateStatus.setText("Extracting " + downloadOutput + " to " + fileToDownload);
-                try {
-                    // extract the file to the new location
-                    decompressBz2(downloadName, fileToDownload);
-                } catch (IOException exception) {
-                    logger.error("Unable to extract file " + downloadName, exception);
-                    new ExceptionWindow(exception);
-                    dispose();
-                }
-                updateStatus.setText("Finished extracting file " + fileToDownload);
-                long extractedTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
-                logger.info("Finished extracting file " + downloadName + ". Took " + extractedTime + "ms.");
-
-                //Cache the hash from the patch manifest
-                logger.info("Caching SHA1 hash of " + fileToDownload);
-                JSONObject currentFile = patches.getJSONObject(fileToDownload);
-                String localHash = currentFile.getString("hash");
-                cacheJSON.put(fileToDownload, localHash);
-
-                currentProgress++;
-                totalUpdateStatus.setText(String.format("Progress: %d / %d", currentProgress, filesToDownload.size()));
-            
-                //Store any changes to the patch cache
-                JSONUtils.writeFile(cacheJSON, cacheFile);
+        } finally {
+            refreshTimer.stop();
+            if (installLock != null) {
+                installLock.close();
             }
-        } else {
-            logger.info("No files need downloaded, we are up to date.");
+            IntegrityScrubber.resume();
         }
-        logger.info("Finished checking for TTR updates!");
         dispose();
     }
 
     /**
-     * Calculates the SHA1 of a file.
+     * Show the latest progress. This runs on the EDT from the refresh timer.
      *
-     * @param file The file to calculate.
-     * @return String representing the SHA1.
+     * @param snapshot The progress.
      */
-    private static String calcSHA1(File file) throws IOException, NoSuchAlgorithmException {
-        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-        try (InputStream input = new FileInputStream(file)) {
-
-            byte[] buffer = new byte[8192];
-            int len = input.read(buffer);
-
-            while (len != -1) {
-                sha1.update(buffer, 0, len);
-                len = input.read(buffer);
-            }
-            return new HexBinaryAdapter().marshal(sha1.digest());
-        }
-    }
-
-    /**
-     * Extract the compressed bzip2 files to their output file.
-     *
-     * @param temp       The temp file's name that was downloaded.
-     * @param outputName The file's output name.
-     */
-    private void decompressBz2(String temp, String outputName) throws IOException {
-        File tempFile = new File("temp" + File.separator + temp);
-        File output = new File(installPath, outputName);
-
-        long totalBytes = tempFile.length();
-        long bytesRead = 0;
-        byte[] buffer = new byte[1024];
-        int len;
-
-        try (BZip2CompressorInputStream in = new BZip2CompressorInputStream(new BufferedInputStream(new FileInputStream(tempFile))); FileOutputStream out = new FileOutputStream(output)) {
-            while ((len = in.read(buffer)) != -1) {
-                out.write(buffer, 0, len);
-                bytesRead += len;
-                int progress = (int) ((bytesRead * 100) / totalBytes);
-                progressBar.setValue(progress);
-            }
+    private void showProgress(UpdateProgress.Snapshot snapshot) {
+        if (!snapshot.downloading()) {
+            updateStatus.setText(snapshot.status());
+            progressBar.setMaximum(snapshot.checkTotal());
+            progressBar.setValue(snapshot.checked());
+            return;
         }
-    }
-
-    /**
-     * Downloads TTR file and saves it to the temp folder.
-     *
-     * @param downloadURL    The URL to download.
-     * @param downloadOutput The file to save to.
-     * @return True if successful, false if not.
-     */
-    private boolean saveFile(URL downloadURL, File downloadOutput) {
-        boolean isSucceed = true;
-
-        CloseableHttpClient httpClient = HttpClients.createDefault();
-
-        HttpGet httpGet = new HttpGet(downloadURL.toString());
-        httpGet.addHeader("User-Agent", CustomLauncherRewrite.userAgent);
-
-        try {
-            CloseableHttpResponse httpResponse = httpClient.execute(httpGet);
-            HttpEntity imageEntity = httpResponse.getEntity();
-            progressBar.setMaximum(100);
-            final FileOutputStream output = FileUtils.openOutputStream(downloadOutput);
-            try {
-                final byte[] buffer = new byte[4046];
-                long count = 0;
-                int n;
-                while (-1 != (n = imageEntity.getContent().read(buffer))) {
-                    output.write(buffer, 0, n);
-                    count += n;
-                    progressBar.setValue((int) (count * 100 / imageEntity.getContentLength()));
-                }
-                output.close();
-            } catch (IOException exception) {
-                logger.error("Unable to save file!", exception);
-                isSucceed = false;
+        progressBar.setMaximum(100);
+        progressBar.setValue(snapshot.percent());
+
+        // say how many files are in each stage, the files change too quickly to name them
+        StringJoiner stages = new StringJoiner(", ");
+        snapshot.stageCounts().forEach((stage, count) -> {
+            switch (stage) {
+                case DOWNLOAD -> stages.add(count + " downloading");
+                case EXTRACT -> stages.add(count + " extracting");
+                case VERIFY -> stages.add(count + " verifying");
+                case COMMIT -> stages.add(count + " finishing");
             }
-        } catch (IOException exception) {
-            logger.error("Unable to save file!", exception);
-            isSucceed = false;
-        }
+        });
+        updateStatus.setText(stages.length() == 0 ? snapshot.status() : "Files: " + stages);
 
-        return isSucceed;
+        String speed = FileUtils.byteCountToDisplaySize(snapshot.bytesPerSecond()) + "/s";
+        String timeLeft = snapshot.secondsLeft() < 0 ? "" : String.format(", %d:%02d left", snapshot.secondsLeft() / 60, snapshot.secondsLeft() % 60);
+        totalUpdateStatus.setText(String.format("Progress: %d / %d - %s%s", snapshot.committed(), snapshot.totalFiles(), speed, timeLeft));
     }
 }
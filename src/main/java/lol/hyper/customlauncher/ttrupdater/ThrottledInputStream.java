@@ -0,0 +1,82 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.function.LongConsumer;
+
+public class ThrottledInputStream extends FilterInputStream {
+
+    /**
+     * The bandwidth cap to respect.
+     */
+    private final BandwidthLimiter bandwidthLimiter;
+    /**
+     * Called with how many bytes were read after every read.
+     */
+    private final LongConsumer readListener;
+
+    /**
+     * Wraps a download stream so it respects the bandwidth cap and reports progress.
+     *
+     * @param in               The stream to wrap.
+     * @param bandwidthLimiter The bandwidth cap to respect.
+     * @param readListener     Called with how many bytes were read after every read.
+     */
+    public ThrottledInputStream(InputStream in, BandwidthLimiter bandwidthLimiter, LongConsumer readListener) {
+        super(in);
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.readListener = readListener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            consumed(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n = super.read(buffer, offset, length);
+        if (n > 0) {
+            consumed(n);
+        }
+        return n;
+    }
+
+    /**
+     * Count the bytes we read and wait if we are over the bandwidth cap.
+     *
+     * @param bytes How many bytes were read.
+     */
+    private void consumed(int bytes) throws IOException {
+        try {
+            bandwidthLimiter.acquire(bytes);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download was interrupted");
+        }
+        readListener.accept(bytes);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+public class TransferProgress {
+
+    /**
+     * How many units a finished file counts for when files are counted instead of bytes.
+     */
+    private static final long FILE_UNITS = 1_000_000;
+    /**
+     * Gets told whenever the whole number percent changes.
+     */
+    private final IntConsumer listener;
+    /**
+     * How many files are being downloaded.
+     */
+    private final AtomicInteger files = new AtomicInteger();
+    /**
+     * How many of the files don't have a size in the manifest.
+     */
+    private final AtomicInteger unknownSizes = new AtomicInteger();
+    /**
+     * The manifest sizes of every file added together.
+     */
+    private final AtomicLong totalBytes = new AtomicLong();
+    /**
+     * How many of the manifest bytes the files are up to. Only used if every file has a size.
+     */
+    private final AtomicLong doneBytes = new AtomicLong();
+    /**
+     * How far each file is, in millionths of a file, added together.
+     */
+    private final AtomicLong doneUnits = new AtomicLong();
+    /**
+     * The last percent the listener was told about.
+     */
+    private final AtomicInteger lastPercent = new AtomicInteger(-1);
+
+    /**
+     * Creates a TransferProgress. Every file should be added before any of them start.
+     *
+     * @param listener Gets told whenever the whole number percent changes.
+     */
+    public TransferProgress(IntConsumer listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Add a file to download.
+     *
+     * @param expectedBytes The compressed size from the manifest, 0 or less if it doesn't have one.
+     * @return Where the file's progress is reported.
+     */
+    public Transfer add(long expectedBytes) {
+        files.incrementAndGet();
+        if (expectedBytes > 0) {
+            totalBytes.addAndGet(expectedBytes);
+        } else {
+            unknownSizes.incrementAndGet();
+        }
+        return new Transfer(expectedBytes);
+    }
+
+    /**
+     * Get how much of the download is done. If every file has a size in the manifest, this is by bytes. Otherwise, every file counts the same.
+     *
+     * @return The progress from 0 to 1.
+     */
+    public double getFraction() {
+        int fileCount = files.get();
+        if (fileCount == 0) {
+            return 0;
+        }
+        if (unknownSizes.get() == 0) {
+            long total = totalBytes.get();
+            return total == 0 ? 0 : Math.min(1, (double) doneBytes.get() / total);
+        }
+        return Math.min(1, (double) doneUnits.get() / (fileCount * FILE_UNITS));
+    }
+
+    /**
+     * Get how much of the download is done.
+     *
+     * @return The progress from 0 to 100.
+     */
+    public int getPercent() {
+        return (int) (getFraction() * 100);
+    }
+
+    /**
+     * Tell the listener if the percent changed.
+     */
+    private void changed() {
+        int percent = getPercent();
+        if (lastPercent.getAndSet(percent) != percent) {
+            listener.accept(percent);
+        }
+    }
+
+    /**
+     * The progress of one file. Downloads say where in the file they are, not how much they read,
+     * so bytes that are downloaded again after a retry are not counted twice.
+     */
+    public class Transfer {
+
+        /**
+         * The compressed size from the manifest, 0 or less if it doesn't have one.
+         */
+        private final long expectedBytes;
+        /**
+         * The size the server gave for what is being downloaded, or -1 if it didn't.
+         */
+        private long length = -1;
+        /**
+         * How many manifest bytes this file counts for right now.
+         */
+        private long bytes = 0;
+        /**
+         * How far this file is, in millionths of a file.
+         */
+        private long units = 0;
+
+        /**
+         * Creates a Transfer.
+         *
+         * @param expectedBytes The compressed size from the manifest, 0 or less if it doesn't have one.
+         */
+        private Transfer(long expectedBytes) {
+            this.expectedBytes = expectedBytes;
+        }
+
+        /**
+         * Say where the download is in the file.
+         *
+         * @param position How many bytes of the file we have, including any that were resumed from.
+         * @param length   How big the file is, -1 if the server didn't say.
+         */
+        public void moved(long position, long length) {
+            synchronized (this) {
+                if (length > 0) {
+                    this.length = length;
+                }
+                long size = expectedBytes > 0 ? expectedBytes : this.length;
+                set(expectedBytes > 0 ? Math.min(position, expectedBytes) : 0, size > 0 ? Math.min(FILE_UNITS, position * FILE_UNITS / size) : 0);
+            }
+            changed();
+        }
+
+        /**
+         * Mark the file as downloaded, even if we never knew how big it was.
+         */
+        public void finish() {
+            synchronized (this) {
+                set(Math.max(0, expectedBytes), FILE_UNITS);
+            }
+            changed();
+        }
+
+        /**
+         * Go back to nothing downloaded, for when the file has to be downloaded again.
+         */
+        public void reset() {
+            synchronized (this) {
+                length = -1;
+                set(0, 0);
+            }
+            changed();
+        }
+
+        /**
+         * Change what this file counts for, and update the totals by the difference.
+         *
+         * @param bytes How many manifest bytes the file counts for.
+         * @param units How far the file is, in millionths of a file.
+         */
+        private void set(long bytes, long units) {
+            doneBytes.addAndGet(bytes - this.bytes);
+            doneUnits.addAndGet(units - this.units);
+            this.bytes = bytes;
+            this.units = units;
+        }
+    }
+}
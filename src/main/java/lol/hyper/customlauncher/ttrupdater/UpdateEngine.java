@@ -0,0 +1,379 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.ConfigHandler;
+import lol.hyper.customlauncher.tools.OSDetection;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+public class UpdateEngine {
+
+    /**
+     * Gets told what the engine is doing. The updater window and the headless updater both listen to it.
+     */
+    public interface Listener extends UpdatePipeline.Listener {
+
+        /**
+         * Called when the engine starts something new.
+         *
+         * @param status What the engine is doing.
+         */
+        void statusChanged(String status);
+
+        /**
+         * Called after each file in the manifest is checked.
+         *
+         * @param key     The file name.
+         * @param checked How many files have been checked so far.
+         * @param total   How many files are in the manifest.
+         */
+        void fileChecked(String key, int checked, int total);
+
+        /**
+         * Called before files start downloading.
+         *
+         * @param files How many files are going to be downloaded.
+         */
+        void downloadStarted(int files);
+    }
+
+    /**
+     * The URL used for checking files. Not sure why this is a "txt" file if it returns a JSON.
+     */
+    public static final String PATCHES_BASE_URL = "https://cdn.toontownrewritten.com";
+    /**
+     * The URL used for storing downloads. This is the root URL, so pass in the file name.
+     */
+    public static final String PATCHES_URL_DL = "https://download.toontownrewritten.com/patches/";
+
+    /**
+     * Where a report is written after each update, so runs can be compared.
+     */
+    public static final File METRICS_FOLDER = new File("metrics");
+
+    /**
+     * The UpdateEngine logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * The config.
+     */
+    private final ConfigHandler configHandler;
+    /**
+     * TTR install path.
+     */
+    private final File installPath;
+    /**
+     * The root URL that files are downloaded from.
+     */
+    private final String downloadBaseURL;
+    /**
+     * Gets told what the engine is doing.
+     */
+    private final Listener listener;
+    /**
+     * Timings, speeds and retries for this run, written to the metrics folder when it ends.
+     */
+    private final UpdateMetrics metrics = new UpdateMetrics();
+    /**
+     * How many files in the manifest have been checked.
+     */
+    private int checked = 0;
+    /**
+     * The patch cache, opened once the background check is done.
+     */
+    private PatchCache patchCache;
+    /**
+     * The last manifest we applied, or null if there isn't one.
+     */
+    private AppliedManifest lastApplied;
+    /**
+     * The pipeline that is downloading files, or null if nothing is downloading yet.
+     */
+    private volatile UpdatePipeline updatePipeline;
+
+    /**
+     * Creates an UpdateEngine.
+     *
+     * @param configHandler   The config.
+     * @param downloadBaseURL The root URL that files are downloaded from.
+     * @param listener        Gets told what the engine is doing.
+     */
+    public UpdateEngine(ConfigHandler configHandler, String downloadBaseURL, Listener listener) {
+        this.configHandler = configHandler;
+        this.installPath = configHandler.getInstallPath();
+        this.downloadBaseURL = downloadBaseURL;
+        this.listener = listener;
+    }
+
+    /**
+     * Check the installed files against the manifest.
+     * Only entries that changed since the last manifest we applied are hashed, unless there isn't one.
+     * The caller has to hold the {@link InstallLock} from here until {@link #update(JSONObject, Map)} is done.
+     *
+     * @param patches The patch manifest.
+     * @return The files to download, along with the hash of the copy we have now, or null if it is missing.
+     */
+    public Map<String, String> checkFiles(JSONObject patches) throws IOException, InterruptedException {
+        // the background check started at launch warms the patch cache, wait for it so we don't both write to it
+        listener.statusChanged("Finishing background file check...");
+        BackgroundVerifier.waitForFinish();
+        new StagedInstall(installPath).recover();
+        listener.statusChanged("Checking files...");
+        patchCache = new PatchCache(installPath);
+
+        // entries that haven't changed since the last manifest we applied were already verified, so only changed ones get checked
+        lastApplied = AppliedManifest.load(installPath);
+        Set<String> changedKeys = null;
+        if (lastApplied != null) {
+            changedKeys = lastApplied.changedKeys(new AppliedManifest(patches));
+            if (changedKeys.isEmpty()) {
+                logger.info("Patch manifest is the same as the last one we applied, skipping file verification.");
+            } else {
+                logger.info(changedKeys.size() + " file(s) were added or changed since the last patch manifest we applied.");
+            }
+        }
+
+        // files to download, along with the hash of the copy we have now
+        Map<String, String> filesToDownload = new LinkedHashMap<>();
+        // files that exist but have no cached hash, these get hashed in parallel
+        ArrayList<String> filesToHash = new ArrayList<>();
+
+        // this loops through the JSON
+        // key is the file name
+        for (String key : patches.keySet()) {
+            JSONObject currentFile = patches.getJSONObject(key);
+            // get the list of OS's the file is for
+            List<String> only = currentFile.getJSONArray("only").toList().stream().map(object -> Objects.toString(object, null)).toList();
+            // if we are running the OS the file is for, check it
+            if (!only.contains(OSDetection.osType)) {
+                fileChecked(key, patches);
+                continue;
+            }
+            File localFile = new File(installPath, key);
+            if (!localFile.exists()) {
+                logger.info("-----------------------------------------------------------------------");
+                logger.info(installPath.getAbsolutePath() + File.separator + key);
+                logger.info("This file is missing and will be downloaded.");
+                filesToDownload.put(key, null);
+                fileChecked(key, patches);
+                continue;
+            }
+
+            // unchanged entries are not hashed again, but damage that the background check or scrubber already found still gets fixed
+            if (changedKeys != null && !changedKeys.contains(key)) {
+                String cachedHash = patchCache.getHash(key, localFile);
+                // the file was touched since it was cached, so the last check no longer vouches for it
+                if (cachedHash == null) {
+                    logger.info("No valid hash for unchanged entry " + key + " found in cache.");
+                    filesToHash.add(key);
+                    continue;
+                }
+                if (!cachedHash.equalsIgnoreCase(currentFile.getString("hash"))) {
+                    compareHash(key, cachedHash, currentFile.getString("hash"), filesToDownload);
+                }
+                fileChecked(key, patches);
+                continue;
+            }
+
+            //If no hash is cached, or the file changed since it was cached, fallback to calculating it
+            String cachedHash = patchCache.getHash(key, localFile);
+            if (cachedHash == null) {
+                logger.info("No valid hash for " + key + " found in cache.");
+                filesToHash.add(key);
+                continue;
+            }
+
+            //Otherwise, just use the cached hash
+            compareHash(key, cachedHash, currentFile.getString("hash"), filesToDownload);
+            fileChecked(key, patches);
+        }
+
+        // the file exists locally, check the SHA1 and compare it to TTR's
+        if (!filesToHash.isEmpty()) {
+            listener.statusChanged("Checking " + filesToHash.size() + " file(s)");
+            PatchVerifier patchVerifier = new PatchVerifier(installPath, configHandler.getUpdaterThreads(), metrics);
+            Map<String, String> localHashes = patchVerifier.hashFiles(filesToHash, key -> {
+                listener.statusChanged("Checking file " + new File(key).getName());
+                fileChecked(key, patches);
+            });
+            for (String key : filesToHash) {
+                String localHash = localHashes.get(key);
+                patchCache.put(key, new File(installPath, key), localHash);
+                compareHash(key, localHash, patches.getJSONObject(key).getString("hash"), filesToDownload);
+            }
+            //Store the hashes we just calculated
+            patchCache.save();
+        }
+
+        // only lookups made while checking count, later ones would skew the ratio
+        metrics.recordCache(patchCache.getHits(), patchCache.getMisses());
+        logger.info("-----------------------------------------------------------------------");
+        return filesToDownload;
+    }
+
+    /**
+     * Download the files that need updating, then tidy up the install and remember the manifest.
+     * This has to run after {@link #checkFiles(JSONObject)}, even if nothing needs downloaded.
+     *
+     * @param patches         The patch manifest.
+     * @param filesToDownload The files from {@link #checkFiles(JSONObject)}.
+     */
+    public void update(JSONObject patches, Map<String, String> filesToDownload) throws IOException, InterruptedException {
+        boolean success = false;
+        try {
+            updateFiles(patches, filesToDownload);
+            success = true;
+        } finally {
+            metrics.export(METRICS_FOLDER, success);
+        }
+    }
+
+    /**
+     * Download the files that need updating, then tidy up the install and remember the manifest.
+     *
+     * @param patches         The patch manifest.
+     * @param filesToDownload The files from {@link #checkFiles(JSONObject)}.
+     */
+    private void updateFiles(JSONObject patches, Map<String, String> filesToDownload) throws IOException, InterruptedException {
+        // we store files we need to download in filesToDownload
+        // if there are files in that list, download them
+        if (filesToDownload.size() > 0) {
+            logger.info(filesToDownload.size() + " file(s) are going to be downloaded.");
+            logger.info(filesToDownload.keySet());
+            listener.downloadStarted(filesToDownload.size());
+
+            // files are downloaded, extracted, verified and cached at the same time
+            updatePipeline = new UpdatePipeline(configHandler, patches, downloadBaseURL, patchCache, listener, metrics);
+            updatePipeline.run(filesToDownload);
+        } else {
+            logger.info("No files need downloaded, we are up to date.");
+        }
+
+        // let other installs use the files we have
+        if (configHandler.getSharedStorePath() != null) {
+            shareInstalledFiles(patches, new SharedStore(configHandler.getSharedStorePath()));
+        }
+
+        // look for files TTR stopped using, these just take up space
+        InstallCleaner installCleaner = new InstallCleaner(installPath, patchCache);
+        InstallCleaner.OrphanReport orphanReport = installCleaner.findOrphans(patches, lastApplied == null ? Set.of() : lastApplied.getPatches().keySet());
+        if (!orphanReport.isEmpty()) {
+            logger.info(orphanReport.files().size() + " file(s) are no longer used by TTR (" + FileUtils.byteCountToDisplaySize(orphanReport.reclaimableBytes()) + ").");
+            logger.info(orphanReport.files());
+            if (configHandler.removeOrphanedFiles()) {
+                installCleaner.remove(orphanReport);
+            } else {
+                logger.info("Set removeOrphanedFiles in the config, or use Clean up in the config window, to remove them.");
+            }
+        }
+
+        // the next update only checks entries that change from this manifest
+        // the next launch also checks files against it before login
+        try {
+            new AppliedManifest(patches).save(installPath);
+        } catch (IOException exception) {
+            logger.warn("Unable to save the patch manifest.", exception);
+        }
+        logger.info("Finished checking for TTR updates!");
+    }
+
+    /**
+     * Get how many bytes have been downloaded so far.
+     *
+     * @return The bytes downloaded, across all files.
+     */
+    public long getDownloadedBytes() {
+        UpdatePipeline pipeline = updatePipeline;
+        return pipeline == null ? 0 : pipeline.getDownloadedBytes();
+    }
+
+    /**
+     * Get how much of the download is done.
+     *
+     * @return The progress from 0 to 1.
+     */
+    public double getDownloadFraction() {
+        UpdatePipeline pipeline = updatePipeline;
+        return pipeline == null ? 0 : pipeline.getDownloadFraction();
+    }
+
+    /**
+     * Tell the listener a file was checked.
+     *
+     * @param key     The file name.
+     * @param patches The patch manifest.
+     */
+    private void fileChecked(String key, JSONObject patches) {
+        listener.fileChecked(key, ++checked, patches.length());
+    }
+
+    /**
+     * Compare a local file's hash to TTR's, and mark it for download if they don't match.
+     *
+     * @param key             The file name.
+     * @param localHash       The hash of the local file.
+     * @param onlineHash      The hash from the patch manifest.
+     * @param filesToDownload The files to download, along with their local hash.
+     */
+    private void compareHash(String key, String localHash, String onlineHash, Map<String, String> filesToDownload) {
+        logger.info("-----------------------------------------------------------------------");
+        logger.info(installPath.getAbsolutePath() + File.separator + key);
+        logger.info("Local hash: " + localHash.toLowerCase(Locale.ENGLISH));
+        logger.info("Expected hash: " + onlineHash);
+        logger.info("Type: " + OSDetection.osType);
+        if (!localHash.equalsIgnoreCase(onlineHash)) {
+            filesToDownload.put(key, localHash);
+        }
+    }
+
+    /**
+     * Add every installed file that matches the manifest to the shared store.
+     * Only files with a cached hash are added, nothing is hashed here.
+     *
+     * @param patches     The patch manifest.
+     * @param sharedStore The shared store.
+     */
+    private void shareInstalledFiles(JSONObject patches, SharedStore sharedStore) {
+        for (String key : patches.keySet()) {
+            File localFile = new File(installPath, key);
+            if (!localFile.exists()) {
+                continue;
+            }
+            String onlineHash = patches.getJSONObject(key).getString("hash");
+            String cachedHash = patchCache.getHash(key, localFile);
+            if (cachedHash != null && cachedHash.equalsIgnoreCase(onlineHash)) {
+                sharedStore.add(onlineHash, localFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.CustomLauncherRewrite;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class UpdateMetrics {
+
+    /**
+     * The parts of an update that get timed, once for each file.
+     */
+    public enum Phase {
+        HASH, DOWNLOAD, EXTRACT, VERIFY, COMMIT
+    }
+
+    /**
+     * The upper bound of each histogram bucket in milliseconds. Anything slower goes in the last bucket.
+     */
+    private static final long[] BUCKET_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+    /**
+     * The report file name timestamp format.
+     */
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    /**
+     * The UpdateMetrics logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * How long each file spent in each phase.
+     */
+    private final Map<Phase, Histogram> histograms = new EnumMap<>(Phase.class);
+    /**
+     * When this run started.
+     */
+    private final LocalDateTime startTime = LocalDateTime.now();
+    /**
+     * How many files were downloaded.
+     */
+    private final AtomicLong files = new AtomicLong();
+    /**
+     * How many bytes were downloaded.
+     */
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    /**
+     * How long downloading took, start to finish.
+     */
+    private final AtomicLong downloadNanos = new AtomicLong();
+    /**
+     * How many times a dropped download was resumed.
+     */
+    private final AtomicLong downloadRetries = new AtomicLong();
+    /**
+     * How many times a file was downloaded again because its hash didn't match.
+     */
+    private final AtomicLong fetchRetries = new AtomicLong();
+    /**
+     * How many files the patch cache had a valid hash for while checking.
+     */
+    private final AtomicLong cacheHits = new AtomicLong();
+    /**
+     * How many files the patch cache didn't have a valid hash for while checking.
+     */
+    private final AtomicLong cacheMisses = new AtomicLong();
+    /**
+     * How many buffers the pool had allocated before this run, the pool lives for the whole launcher.
+     */
+    private final long startBufferAllocations = BufferPool.getAllocations();
+    /**
+     * How many buffers the pool had reused before this run.
+     */
+    private final long startBufferReuses = BufferPool.getReuses();
+
+    /**
+     * Creates an UpdateMetrics.
+     */
+    public UpdateMetrics() {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new Histogram());
+        }
+    }
+
+    /**
+     * Record how long a file spent in a phase.
+     *
+     * @param phase The phase.
+     * @param nanos How long it took.
+     */
+    public void record(Phase phase, long nanos) {
+        histograms.get(phase).add(TimeUnit.MILLISECONDS.convert(nanos, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Record how the downloads went.
+     *
+     * @param files   How many files were downloaded.
+     * @param bytes   How many bytes were downloaded.
+     * @param nanos   How long downloading took, start to finish.
+     * @param retries How many times a dropped download was resumed.
+     */
+    public void recordDownloads(int files, long bytes, long nanos, long retries) {
+        this.files.addAndGet(files);
+        downloadedBytes.addAndGet(bytes);
+        downloadNanos.addAndGet(nanos);
+        downloadRetries.addAndGet(retries);
+    }
+
+    /**
+     * Record that a file was downloaded again because its hash didn't match.
+     */
+    public void recordFetchRetry() {
+        fetchRetries.incrementAndGet();
+    }
+
+    /**
+     * Record how the patch cache did while checking files.
+     *
+     * @param hits   How many files had a valid cached hash.
+     * @param misses How many files didn't.
+     */
+    public void recordCache(long hits, long misses) {
+        cacheHits.addAndGet(hits);
+        cacheMisses.addAndGet(misses);
+    }
+
+    /**
+     * Get the average download speed.
+     *
+     * @return Bytes per second, or 0 if nothing was downloaded.
+     */
+    public long getBytesPerSecond() {
+        long millis = TimeUnit.MILLISECONDS.convert(downloadNanos.get(), TimeUnit.NANOSECONDS);
+        return millis <= 0 ? 0 : downloadedBytes.get() * 1000 / millis;
+    }
+
+    /**
+     * Get how often the patch cache had a valid hash while checking files.
+     *
+     * @return The hit ratio from 0 to 1, or 0 if nothing was looked up.
+     */
+    public double getCacheHitRatio() {
+        long lookups = cacheHits.get() + cacheMisses.get();
+        return lookups == 0 ? 0 : (double) cacheHits.get() / lookups;
+    }
+
+    /**
+     * Turn the metrics into JSON.
+     *
+     * @param success Did the update work?
+     * @return The metrics.
+     */
+    public JSONObject toJSON(boolean success) {
+        JSONObject report = new JSONObject();
+        report.put("time", startTime.toString());
+        report.put("version", String.valueOf(CustomLauncherRewrite.version));
+        report.put("success", success);
+        report.put("files", files.get());
+        report.put("bytes", downloadedBytes.get());
+        report.put("bytesPerSecond", getBytesPerSecond());
+        report.put("downloadRetries", downloadRetries.get());
+        report.put("fetchRetries", fetchRetries.get());
+        report.put("cacheHits", cacheHits.get());
+        report.put("cacheMisses", cacheMisses.get());
+        report.put("cacheHitRatio", getCacheHitRatio());
+        report.put("bufferAllocations", BufferPool.getAllocations() - startBufferAllocations);
+        report.put("bufferReuses", BufferPool.getReuses() - startBufferReuses);
+        JSONObject phases = new JSONObject();
+        histograms.forEach((phase, histogram) -> phases.put(phase.name().toLowerCase(Locale.ENGLISH), histogram.toJSON()));
+        report.put("phases", phases);
+        return report;
+    }
+
+    /**
+     * Write a JSON report for this run, and add a line to the CSV of every run.
+     * Failing to write the report never fails the update.
+     *
+     * @param folder  The folder to write to.
+     * @param success Did the update work?
+     */
+    public void export(File folder, boolean success) {
+        try {
+            Files.createDirectories(folder.toPath());
+            JSONObject report = toJSON(success);
+            File reportFile = new File(folder, "update-" + startTime.format(FILE_TIME) + ".json");
+            Files.writeString(reportFile.toPath(), report.toString(4), StandardCharsets.UTF_8);
+
+            File csvFile = new File(folder, "updates.csv");
+            StringBuilder lines = new StringBuilder();
+            if (!csvFile.exists()) {
+                lines.append(csvHeader()).append(System.lineSeparator());
+            }
+            lines.append(csvRow(success)).append(System.lineSeparator());
+            Files.writeString(csvFile.toPath(), lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            logger.info("Wrote update metrics to " + reportFile.getAbsolutePath());
+        } catch (IOException exception) {
+            logger.warn("Unable to write update metrics to " + folder.getAbsolutePath(), exception);
+        }
+    }
+
+    /**
+     * Get the CSV column names.
+     *
+     * @return The header line.
+     */
+    private String csvHeader() {
+        StringJoiner header = new StringJoiner(",");
+        header.add("time").add("version").add("success").add("files").add("bytes").add("bytesPerSecond");
+        header.add("downloadRetries").add("fetchRetries").add("cacheHits").add("cacheMisses").add("cacheHitRatio");
+        for (Phase phase : Phase.values()) {
+            String name = phase.name().toLowerCase(Locale.ENGLISH);
+            header.add(name + "Count").add(name + "MeanMs").add(name + "P90Ms").add(name + "MaxMs");
+        }
+        header.add("bufferAllocations").add("bufferReuses");
+        return header.toString();
+    }
+
+    /**
+     * Get this run as a CSV line.
+     *
+     * @param success Did the update work?
+     * @return The line.
+     */
+    private String csvRow(boolean success) {
+        StringJoiner row = new StringJoiner(",");
+        row.add(startTime.toString()).add(String.valueOf(CustomLauncherRewrite.version)).add(String.valueOf(success));
+        row.add(String.valueOf(files.get())).add(String.valueOf(downloadedBytes.get())).add(String.valueOf(getBytesPerSecond()));
+        row.add(String.valueOf(downloadRetries.get())).add(String.valueOf(fetchRetries.get()));
+        row.add(String.valueOf(cacheHits.get())).add(String.valueOf(cacheMisses.get())).add(String.format(Locale.ENGLISH, "%.4f", getCacheHitRatio()));
+        for (Phase phase : Phase.values()) {
+            Histogram histogram = histograms.get(phase);
+            row.add(String.valueOf(histogram.count.get())).add(String.valueOf(histogram.mean())).add(String.valueOf(histogram.percentile(0.9))).add(String.valueOf(histogram.max.get()));
+        }
+        row.add(String.valueOf(BufferPool.getAllocations() - startBufferAllocations)).add(String.valueOf(BufferPool.getReuses() - startBufferReuses));
+        return row.toString();
+    }
+
+    /**
+     * Counts how many times fell into each bucket. Buckets are fixed, so adding a time never allocates or locks.
+     */
+    private static class Histogram {
+
+        /**
+         * How many times fell into each bucket.
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_MILLIS.length + 1);
+        /**
+         * How many times were added.
+         */
+        private final AtomicLong count = new AtomicLong();
+        /**
+         * The sum of every time.
+         */
+        private final AtomicLong total = new AtomicLong();
+        /**
+         * The longest time.
+         */
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Add a time.
+         *
+         * @param millis The time in milliseconds.
+         */
+        private void add(long millis) {
+            int bucket = 0;
+            while (bucket < BUCKET_MILLIS.length && millis > BUCKET_MILLIS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            total.addAndGet(millis);
+            max.accumulateAndGet(millis, Math::max);
+        }
+
+        /**
+         * Get the average time.
+         *
+         * @return The average in milliseconds, or 0 if nothing was added.
+         */
+        private long mean() {
+            long added = count.get();
+            return added == 0 ? 0 : total.get() / added;
+        }
+
+        /**
+         * Get roughly the time that a share of files finished within. This is the upper bound of the bucket it falls in.
+         *
+         * @param fraction The share of files, from 0 to 1.
+         * @return The time in milliseconds, or 0 if nothing was added.
+         */
+        private long percentile(double fraction) {
+            long added = count.get();
+            if (added == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(added * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_MILLIS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return Math.min(BUCKET_MILLIS[i], max.get());
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * Turn the histogram into JSON.
+         *
+         * @return The histogram.
+         */
+        private JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("count", count.get());
+            json.put("totalMs", total.get());
+            json.put("meanMs", mean());
+            json.put("p50Ms", percentile(0.5));
+            json.put("p90Ms", percentile(0.9));
+            json.put("p99Ms", percentile(0.99));
+            json.put("maxMs", max.get());
+            // the last count is for anything slower than the last bound
+            JSONArray bucketCounts = new JSONArray();
+            for (int i = 0; i < buckets.length(); i++) {
+                bucketCounts.put(buckets.get(i));
+            }
+            json.put("bucketUpperMs", new JSONArray(BUCKET_MILLIS));
+            json.put("bucketCounts", bucketCounts);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,769 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.ConfigHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class UpdatePipeline {
+
+    /**
+     * The stages each file goes through.
+     */
+    public enum Stage {
+        DOWNLOAD, EXTRACT, VERIFY, COMMIT
+    }
+
+    /**
+     * Gets told what the pipeline is doing.
+     */
+    public interface Listener {
+
+        /**
+         * Called whenever any download makes progress.
+         *
+         * @param percent The combined progress of all downloads, from 0 to 100.
+         */
+        void downloadProgress(int percent);
+
+        /**
+         * Called when a file enters a stage.
+         *
+         * @param stage The stage.
+         * @param key   The file name.
+         */
+        void stageStarted(Stage stage, String key);
+
+        /**
+         * Called when a file has made it through every stage.
+         *
+         * @param key       The file name.
+         * @param committed How many files have made it through so far.
+         * @param total     How many files there are.
+         */
+        void fileCommitted(String key, int committed, int total);
+    }
+
+    /**
+     * @param stage       The stage.
+     * @param files       How many files went through the stage.
+     * @param totalMillis How long the stage spent working, across all of its threads.
+     * @param maxMillis   The longest the stage spent on a single file.
+     */
+    public record StageTiming(Stage stage, int files, long totalMillis, long maxMillis) {
+    }
+
+    /**
+     * How many times a file is fetched before we give up on it.
+     */
+    private final int MAX_FETCH_ATTEMPTS = 3;
+    /**
+     * How long to wait for the stages to stop before the staged files are touched.
+     */
+    private final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    /**
+     * The UpdatePipeline logger.
+     */
+    private final Logger logger = LogManager.getLogger(this);
+    /**
+     * TTR install path.
+     */
+    private final File installPath;
+    /**
+     * Where compressed files are downloaded to.
+     */
+    private final File tempFolder = new File("temp");
+    /**
+     * The patch manifest.
+     */
+    private final JSONObject patches;
+    /**
+     * The root URL that files are downloaded from.
+     */
+    private final String downloadBaseURL;
+    /**
+     * The patch cache, verified files get their hash stored here.
+     */
+    private final PatchCache patchCache;
+    /**
+     * Gets told what the pipeline is doing.
+     */
+    private final Listener listener;
+    /**
+     * How many files are downloaded at the same time.
+     */
+    private final int downloadThreads;
+    /**
+     * How many threads the extract and verify stages each get.
+     */
+    private final int workerThreads;
+    /**
+     * Should files be extracted while they are downloaded?
+     */
+    private final boolean streamDownloads;
+    /**
+     * Handles connection limits and the bandwidth cap.
+     */
+    private final DownloadScheduler downloadScheduler;
+    /**
+     * How far along the downloads are, measured against every file in the update.
+     */
+    private final TransferProgress downloadProgress;
+    /**
+     * Holds new files until every file is ready, then installs them together.
+     */
+    private final StagedInstall stagedInstall;
+    /**
+     * Extracts the downloaded files.
+     */
+    private final ParallelBzip2Decompressor bzip2Decompressor;
+    /**
+     * Store shared with other installs, files in it don't need downloaded. Null if it's not used.
+     */
+    private final SharedStore sharedStore;
+    /**
+     * Where stage times, retries and download speed are recorded.
+     */
+    private final UpdateMetrics metrics;
+    /**
+     * Files waiting to be downloaded. Files the game needs to start go first, then smaller files,
+     * so the later stages get work as soon as possible.
+     */
+    private final BlockingQueue<PatchJob> downloadQueue = new PriorityBlockingQueue<>(11, Comparator.comparingInt((PatchJob job) -> job.tier).thenComparingLong(job -> job.estimatedSize));
+    /**
+     * Files waiting to be extracted.
+     */
+    private final BlockingQueue<PatchJob> extractQueue;
+    /**
+     * Files waiting to be verified.
+     */
+    private final BlockingQueue<PatchJob> verifyQueue;
+    /**
+     * Files waiting to be committed to the cache.
+     */
+    private final BlockingQueue<PatchJob> commitQueue;
+    /**
+     * How long each stage has spent working.
+     */
+    private final Map<Stage, StageTimer> stageTimers = new EnumMap<>(Stage.class);
+    /**
+     * Puts files that failed verification back in the download queue after a delay.
+     */
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor();
+    /**
+     * The first error any stage ran into. This stops the whole pipeline.
+     */
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    /**
+     * How many files have been committed.
+     */
+    private final AtomicInteger committed = new AtomicInteger();
+    /**
+     * Files that are verified and waiting in the staging folder.
+     */
+    private final Queue<PatchJob> stagedJobs = new ConcurrentLinkedQueue<>();
+    /**
+     * How many files are being updated.
+     */
+    private int totalFiles;
+    /**
+     * Counts down as files are committed.
+     */
+    private CountDownLatch remaining;
+    /**
+     * Set once the pipeline is done, so the workers stop.
+     */
+    private volatile boolean finished = false;
+
+    /**
+     * Creates an UpdatePipeline.
+     *
+     * @param configHandler   The config, used for thread counts and download limits.
+     * @param patches         The patch manifest.
+     * @param downloadBaseURL The root URL that files are downloaded from.
+     * @param patchCache      The patch cache.
+     * @param listener        Gets told what the pipeline is doing.
+     * @param metrics         Where stage times, retries and download speed are recorded.
+     */
+    public UpdatePipeline(ConfigHandler configHandler, JSONObject patches, String downloadBaseURL, PatchCache patchCache, Listener listener, UpdateMetrics metrics) {
+        this.installPath = configHandler.getInstallPath();
+        this.patches = patches;
+        this.downloadBaseURL = downloadBaseURL;
+        this.patchCache = patchCache;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.downloadThreads = configHandler.getDownloadThreads();
+        this.workerThreads = configHandler.getUpdaterThreads();
+        this.streamDownloads = configHandler.streamDownloads();
+        this.downloadScheduler = new DownloadScheduler(configHandler.getConnectionsPerHost(), downloadThreads, configHandler.getDownloadSpeedLimit() * 1024L);
+        this.downloadProgress = new TransferProgress(listener::downloadProgress);
+        this.bzip2Decompressor = new ParallelBzip2Decompressor(workerThreads);
+        this.stagedInstall = new StagedInstall(installPath);
+        this.sharedStore = configHandler.getSharedStorePath() == null ? null : new SharedStore(configHandler.getSharedStorePath());
+        // keep the queues between stages small, so one slow stage holds back the ones before it
+        this.extractQueue = new ArrayBlockingQueue<>(Math.max(2, downloadThreads * 2));
+        this.verifyQueue = new ArrayBlockingQueue<>(Math.max(2, workerThreads * 2));
+        this.commitQueue = new ArrayBlockingQueue<>(Math.max(2, workerThreads * 2));
+        for (Stage stage : Stage.values()) {
+            stageTimers.put(stage, new StageTimer());
+        }
+    }
+
+    /**
+     * Download, extract, verify and commit the files. Every stage runs at the same time on different files.
+     * Files that have a delta patch from their current version only download the patch.
+     * Files are written to a staging folder, and only replace the installed files once every file is verified.
+     *
+     * @param files The files to update, along with the hash of the copy we have now, or null if it is missing.
+     */
+    public void run(Map<String, String> files) throws IOException, InterruptedException {
+        // the HTTP client and the decoding threads live for this run, and are closed however it ends
+        long startTime = System.nanoTime();
+        try (downloadScheduler; bzip2Decompressor) {
+            runStages(files);
+        } finally {
+            metrics.recordDownloads(files.size(), downloadScheduler.getDownloadedBytes(), System.nanoTime() - startTime, downloadScheduler.getRetries());
+        }
+    }
+
+    /**
+     * Run every stage until all the files are committed, then install them.
+     *
+     * @param files The files to update, along with the hash of the copy we have now, or null if it is missing.
+     */
+    private void runStages(Map<String, String> files) throws IOException, InterruptedException {
+        if (files.isEmpty()) {
+            return;
+        }
+        // delta patches always go through the temp folder, even when streaming
+        if (!tempFolder.exists() && !tempFolder.mkdirs()) {
+            throw new IOException("Unable to create temp folder!");
+        }
+        stagedInstall.prepare();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            String key = entry.getKey();
+            JSONObject file = patches.getJSONObject(key);
+            String downloadName = file.getString("dl");
+            PatchJob job = new PatchJob(key, new URL(downloadBaseURL + downloadName), new File(tempFolder, downloadName), new File(installPath, key), stagedInstall.getStagedFile(key), file.getString("hash"), file.optString("compHash", null), DownloadPriority.estimateSize(file, new File(installPath, key)));
+            // the whole update is known up front, so the progress doesn't jump back as files start
+            job.transfer = downloadProgress.add(file.optLong("compSize", 0));
+            job.delta = findDelta(file, entry.getValue(), job.destination);
+            if (job.delta != null) {
+                logger.info(key + " has a delta patch from " + entry.getValue() + ", only the patch will be downloaded.");
+            }
+            downloadQueue.add(job);
+        }
+        totalFiles = files.size();
+        remaining = new CountDownLatch(totalFiles);
+
+        long pipelineStart = System.nanoTime();
+        ExecutorService workers = Executors.newCachedThreadPool();
+        try {
+            startStage(workers, Stage.DOWNLOAD, downloadThreads, downloadQueue, this::download);
+            startStage(workers, Stage.EXTRACT, workerThreads, extractQueue, this::extract);
+            startStage(workers, Stage.VERIFY, workerThreads, verifyQueue, this::verify);
+            // committing only marks files as ready, one thread is enough
+            startStage(workers, Stage.COMMIT, 1, commitQueue, this::commit);
+
+            while (!remaining.await(100, TimeUnit.MILLISECONDS)) {
+                if (failure.get() != null) {
+                    break;
+                }
+            }
+        } finally {
+            finished = true;
+            workers.shutdownNow();
+            retryScheduler.shutdownNow();
+            // a worker that is still writing to the staging folder would race with installing or discarding it
+            if (!workers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Update stages did not stop after " + SHUTDOWN_TIMEOUT_SECONDS + " seconds.");
+            }
+        }
+
+        Exception exception = failure.get();
+        if (exception != null) {
+            // nothing was installed, the old files are still in place
+            stagedInstall.discard();
+            if (exception instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Unable to update files", exception);
+        }
+
+        try {
+            stagedInstall.install(stagedJobs.stream().map(job -> job.key).toList());
+        } finally {
+            stagedInstall.discard();
+        }
+        for (PatchJob job : stagedJobs) {
+            logger.info("Caching SHA1 hash of " + job.key);
+            patchCache.put(job.key, job.destination, job.extractedHash);
+        }
+        patchCache.save();
+
+        long pipelineTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - pipelineStart, TimeUnit.NANOSECONDS);
+        logger.info("Updated " + files.size() + " file(s). Took " + pipelineTime + "ms.");
+        for (StageTiming timing : getStageTimings()) {
+            logger.info("Stage " + timing.stage() + ": " + timing.files() + " file(s), " + timing.totalMillis() + "ms total, " + timing.maxMillis() + "ms longest.");
+        }
+    }
+
+    /**
+     * Get how many bytes have been downloaded so far.
+     *
+     * @return The bytes downloaded, across all files.
+     */
+    public long getDownloadedBytes() {
+        return downloadScheduler.getDownloadedBytes();
+    }
+
+    /**
+     * Get how much of the download is done, by compressed size if the manifest has it, otherwise by file count.
+     *
+     * @return The progress from 0 to 1.
+     */
+    public double getDownloadFraction() {
+        return downloadProgress.getFraction();
+    }
+
+    /**
+     * Get how long each stage spent working.
+     *
+     * @return The timing of each stage.
+     */
+    public List<StageTiming> getStageTimings() {
+        List<StageTiming> timings = new ArrayList<>();
+        for (Map.Entry<Stage, StageTimer> entry : stageTimers.entrySet()) {
+            timings.add(entry.getValue().toTiming(entry.getKey()));
+        }
+        return timings;
+    }
+
+    /**
+     * Start the workers for a stage. Each worker takes files from the stage's queue and hands them to the next stage's queue.
+     *
+     * @param workers The thread pool to run on.
+     * @param stage   The stage.
+     * @param threads How many workers the stage gets.
+     * @param input   The stage's queue.
+     * @param handler Does the stage's work.
+     */
+    private void startStage(ExecutorService workers, Stage stage, int threads, BlockingQueue<PatchJob> input, StageHandler handler) {
+        StageTimer timer = stageTimers.get(stage);
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            workers.execute(() -> {
+                while (!finished) {
+                    try {
+                        PatchJob job = input.poll(100, TimeUnit.MILLISECONDS);
+                        if (job == null) {
+                            continue;
+                        }
+                        listener.stageStarted(stage, job.key);
+                        long start = System.nanoTime();
+                        BlockingQueue<PatchJob> next = handler.handle(job);
+                        timer.add(System.nanoTime() - start);
+                        metrics.record(UpdateMetrics.Phase.valueOf(stage.name()), System.nanoTime() - start);
+                        // waiting on the next stage does not count towards this stage's time
+                        if (next != null) {
+                            next.put(job);
+                        }
+                    } catch (InterruptedException exception) {
+                        return;
+                    } catch (Exception exception) {
+                        // being stopped interrupts whatever the worker was doing, that isn't a failure
+                        if (finished) {
+                            return;
+                        }
+                        logger.error("Stage " + stage + " failed!", exception);
+                        failure.compareAndSet(null, exception);
+                        return;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Find a delta patch in the manifest that goes from the copy we have to the new file.
+     *
+     * @param file        The file's manifest entry.
+     * @param localHash   The hash of the copy we have, or null if it is missing.
+     * @param destination The copy we have.
+     * @return The delta patch, or null if there isn't one.
+     */
+    private DeltaPatch findDelta(JSONObject file, String localHash, File destination) throws MalformedURLException {
+        JSONObject deltas = file.optJSONObject("patches");
+        if (localHash == null || deltas == null || !destination.exists()) {
+            return null;
+        }
+        for (String sourceHash : deltas.keySet()) {
+            if (!sourceHash.equalsIgnoreCase(localHash)) {
+                continue;
+            }
+            JSONObject delta = deltas.getJSONObject(sourceHash);
+            String patchName = delta.getString("filename");
+            return new DeltaPatch(new URL(downloadBaseURL + patchName), new File(tempFolder, patchName), delta.optString("compPatchHash", null), delta.optString("patchHash", null));
+        }
+        return null;
+    }
+
+    /**
+     * Download a file. Streamed files are extracted at the same time and skip the extract stage.
+     * Files with a delta patch only download the patch, and fall back to the full file if that fails.
+     * Files the shared store already has are not downloaded at all.
+     *
+     * @param job The file.
+     * @return The next stage's queue.
+     */
+    private BlockingQueue<PatchJob> download(PatchJob job) throws Exception {
+        if (sharedStore != null && sharedStore.link(job.expectedHash, job.stagedFile)) {
+            // another install might have broken its copy, so it's still checked
+            String linkedHash = PatchVerifier.calcSHA1(job.stagedFile);
+            if (linkedHash.equalsIgnoreCase(job.expectedHash)) {
+                logger.info("Using " + job.key + " from the shared store.");
+                job.extractedHash = linkedHash;
+                job.transfer.finish();
+                return verifyQueue;
+            }
+            logger.warn("Shared store copy of " + job.key + " is broken, downloading it instead.");
+            sharedStore.remove(job.expectedHash);
+            Files.deleteIfExists(job.stagedFile.toPath());
+        }
+        DeltaPatch delta = job.delta;
+        if (delta != null) {
+            try {
+                downloadScheduler.download(delta.downloadURL(), delta.tempFile(), delta.compHash(), job.transfer);
+                job.transfer.finish();
+                return extractQueue;
+            } catch (IOException exception) {
+                logger.warn("Unable to download delta patch for " + job.key + ", downloading the full file instead.", exception);
+                job.delta = null;
+            }
+        }
+        try {
+            if (streamDownloads) {
+                job.extractedHash = downloadScheduler.downloadAndExtract(job.downloadURL, job.stagedFile, job.getSizeHint(), job.transfer);
+            } else {
+                downloadScheduler.download(job.downloadURL, job.tempFile, job.compHash, job.transfer);
+            }
+            job.transfer.finish();
+            return streamDownloads ? verifyQueue : extractQueue;
+        } catch (IOException exception) {
+            return refetch(job, "Unable to download " + job.key, exception);
+        }
+    }
+
+    /**
+     * Extract a downloaded file to the install folder, hashing it as it is written.
+     * Delta patches are applied to the copy we have. If that fails, the file goes back to be downloaded in full.
+     * A download that can't be extracted is thrown away and fetched again.
+     *
+     * @param job The file.
+     * @return The next stage's queue.
+     */
+    private BlockingQueue<PatchJob> extract(PatchJob job) throws IOException, NoSuchAlgorithmException {
+        if (job.delta != null) {
+            try {
+                applyDelta(job);
+                return verifyQueue;
+            } catch (IOException exception) {
+                logger.warn("Unable to apply delta patch for " + job.key + ", downloading the full file instead.", exception);
+                job.delta = null;
+                job.transfer.reset();
+                return downloadQueue;
+            }
+        }
+        long startTime = System.nanoTime();
+        logger.info("Extracting " + job.tempFile.getAbsolutePath() + " to " + job.stagedFile.getAbsolutePath());
+        try {
+            job.extractedHash = bzip2Decompressor.decompress(job.tempFile, job.stagedFile, job.getSizeHint());
+        } catch (IOException exception) {
+            return refetch(job, "Unable to extract " + job.key, exception);
+        }
+        long extractedTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        logger.info("Finished extracting file " + job.tempFile.getName() + ". Took " + extractedTime + "ms.");
+        return verifyQueue;
+    }
+
+    /**
+     * Extract a delta patch and apply it to the copy we have, writing the result to the staging folder.
+     *
+     * @param job The file.
+     */
+    private void applyDelta(PatchJob job) throws IOException, NoSuchAlgorithmException {
+        DeltaPatch delta = job.delta;
+        File patchFile = new File(delta.tempFile().getPath() + ".patch");
+        long startTime = System.nanoTime();
+        try {
+            String patchHash = bzip2Decompressor.decompress(delta.tempFile(), patchFile, 0);
+            if (delta.patchHash() != null && !patchHash.equalsIgnoreCase(delta.patchHash())) {
+                throw new IOException("Delta patch hash does not match! Expected " + delta.patchHash() + " but got " + patchHash);
+            }
+            String patchedHash = BsdiffPatcher.apply(job.destination, patchFile, job.stagedFile);
+            if (!patchedHash.equalsIgnoreCase(job.expectedHash)) {
+                throw new IOException("Patched file hash does not match! Expected " + job.expectedHash + " but got " + patchedHash);
+            }
+            job.extractedHash = patchedHash;
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(delta.tempFile().toPath());
+        }
+        long patchTime = TimeUnit.MILLISECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        logger.info("Finished applying delta patch to " + job.key + ". Took " + patchTime + "ms.");
+    }
+
+    /**
+     * Check the extracted file's hash against the manifest's hash.
+     * Files that don't match are downloaded again after a delay, until they run out of attempts.
+     *
+     * @param job The file.
+     * @return The next stage's queue, or null if the file is being downloaded again.
+     */
+    private BlockingQueue<PatchJob> verify(PatchJob job) throws IOException {
+        if (job.extractedHash.equalsIgnoreCase(job.expectedHash)) {
+            return commitQueue;
+        }
+        return refetch(job, "Extracted " + job.key + " but the hash does not match! Expected " + job.expectedHash + " but got " + job.extractedHash, null);
+    }
+
+    /**
+     * Send a file that couldn't be downloaded, extracted or verified back to be downloaded again after a delay.
+     * Each attempt waits twice as long as the last one. Once the file runs out of attempts, the update fails.
+     * Interrupts are passed on, since they mean the update is being stopped.
+     *
+     * @param job       The file.
+     * @param reason    What went wrong.
+     * @param exception The error, or null if there wasn't one.
+     * @return Nothing, the file goes back to the download queue on its own.
+     */
+    private BlockingQueue<PatchJob> refetch(PatchJob job, String reason, IOException exception) throws IOException {
+        if (exception != null && (exception instanceof InterruptedIOException || exception instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted())) {
+            throw exception;
+        }
+        logger.error(reason, exception);
+        if (job.attempts >= MAX_FETCH_ATTEMPTS) {
+            throw new IOException("Unable to get a good copy of " + job.key + " after " + job.attempts + " attempts", exception);
+        }
+        // the download might be what's broken, so don't extract it again
+        Files.deleteIfExists(job.tempFile.toPath());
+        job.transfer.reset();
+        long delay = 1L << (job.attempts - 1);
+        logger.warn("Downloading " + job.key + " again in " + delay + " second(s) (attempt " + (job.attempts + 1) + "/" + MAX_FETCH_ATTEMPTS + ").");
+        job.attempts++;
+        metrics.recordFetchRetry();
+        retryScheduler.schedule(() -> downloadQueue.add(job), delay, TimeUnit.SECONDS);
+        return null;
+    }
+
+    /**
+     * Mark a verified file as ready to install. It is installed with the rest once every file is ready.
+     *
+     * @param job The file.
+     * @return Nothing, this is the last stage.
+     */
+    private BlockingQueue<PatchJob> commit(PatchJob job) {
+        if (sharedStore != null) {
+            sharedStore.add(job.extractedHash, job.stagedFile);
+        }
+        stagedJobs.add(job);
+        listener.fileCommitted(job.key, committed.incrementAndGet(), totalFiles);
+        remaining.countDown();
+        return null;
+    }
+
+    /**
+     * Does the work for one stage.
+     */
+    private interface StageHandler {
+
+        /**
+         * Handle a file.
+         *
+         * @param job The file.
+         * @return The next stage's queue, or null if this is the last stage.
+         */
+        BlockingQueue<PatchJob> handle(PatchJob job) throws Exception;
+    }
+
+    /**
+     * A delta patch from the manifest.
+     *
+     * @param downloadURL Where to download the patch from.
+     * @param tempFile    Where the compressed patch is downloaded to.
+     * @param compHash    The hash of the compressed patch, or null if the manifest does not have one.
+     * @param patchHash   The hash of the extracted patch, or null if the manifest does not have one.
+     */
+    private record DeltaPatch(URL downloadURL, File tempFile, String compHash, String patchHash) {
+    }
+
+    /**
+     * A file moving through the pipeline.
+     */
+    private static class PatchJob {
+
+        /**
+         * The file name from the manifest.
+         */
+        final String key;
+        /**
+         * Where to download the file from.
+         */
+        final URL downloadURL;
+        /**
+         * Where the compressed file is downloaded to.
+         */
+        final File tempFile;
+        /**
+         * Where the file is installed.
+         */
+        final File destination;
+        /**
+         * Where the file is extracted to before it is installed.
+         */
+        final File stagedFile;
+        /**
+         * The manifest's hash of the extracted file.
+         */
+        final String expectedHash;
+        /**
+         * The manifest's hash of the compressed file, or null if it does not have one.
+         */
+        final String compHash;
+        /**
+         * The hash of the extracted file, once we know it.
+         */
+        volatile String extractedHash;
+        /**
+         * How important the file is for launching the game, lower goes first.
+         */
+        final int tier;
+        /**
+         * About how big the file is, used to order files in the same tier.
+         */
+        final long estimatedSize;
+        /**
+         * The delta patch to apply to the copy we have, or null to download the full file.
+         */
+        volatile DeltaPatch delta;
+        /**
+         * How many times the file has been fetched.
+         */
+        volatile int attempts = 1;
+        /**
+         * Where the file's download progress is reported.
+         */
+        volatile TransferProgress.Transfer transfer;
+
+        /**
+         * Creates a PatchJob.
+         *
+         * @param key           The file name from the manifest.
+         * @param downloadURL   Where to download the file from.
+         * @param tempFile      Where the compressed file is downloaded to.
+         * @param destination   Where the file is installed.
+         * @param stagedFile    Where the file is extracted to before it is installed.
+         * @param expectedHash  The manifest's hash of the extracted file.
+         * @param compHash      The manifest's hash of the compressed file, or null if it does not have one.
+         * @param estimatedSize About how big the file is, from {@link DownloadPriority#estimateSize}.
+         */
+        PatchJob(String key, URL downloadURL, File tempFile, File destination, File stagedFile, String expectedHash, String compHash, long estimatedSize) {
+            this.key = key;
+            this.downloadURL = downloadURL;
+            this.tempFile = tempFile;
+            this.destination = destination;
+            this.stagedFile = stagedFile;
+            this.expectedHash = expectedHash;
+            this.compHash = compHash;
+            this.tier = DownloadPriority.getTier(key);
+            this.estimatedSize = estimatedSize;
+        }
+
+        /**
+         * Get how big the extracted file is expected to be, so its writer can size its buffer and set its length.
+         *
+         * @return The estimated size or the size of the copy we have now, whichever is bigger, or 0 if there is no estimate.
+         */
+        long getSizeHint() {
+            if (estimatedSize == Long.MAX_VALUE) {
+                return 0;
+            }
+            // the estimate may be the compressed size, the copy we have now is often closer to the extracted one
+            return Math.max(estimatedSize, destination.length());
+        }
+    }
+
+    /**
+     * Adds up how long a stage spent working.
+     */
+    private static class StageTimer {
+
+        /**
+         * How many files went through the stage.
+         */
+        private int files;
+        /**
+         * How long the stage spent working.
+         */
+        private long totalNanos;
+        /**
+         * The longest the stage spent on a single file.
+         */
+        private long maxNanos;
+
+        /**
+         * Add the time spent on one file.
+         *
+         * @param nanos The time spent.
+         */
+        synchronized void add(long nanos) {
+            files++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        /**
+         * Get the stage's timing so far.
+         *
+         * @param stage The stage.
+         * @return The timing.
+         */
+        synchronized StageTiming toTiming(Stage stage) {
+            return new StageTiming(stage, files, TimeUnit.NANOSECONDS.toMillis(totalNanos), TimeUnit.NANOSECONDS.toMillis(maxNanos));
+        }
+    }
+}
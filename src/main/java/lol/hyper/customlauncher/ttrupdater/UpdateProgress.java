@@ -0,0 +1,171 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+public class UpdateProgress implements UpdateEngine.Listener {
+
+    /**
+     * What the engine is doing.
+     */
+    private final AtomicReference<String> status = new AtomicReference<>("Checking files...");
+    /**
+     * How many files in the manifest have been checked.
+     */
+    private final AtomicInteger checked = new AtomicInteger();
+    /**
+     * How many files are in the manifest.
+     */
+    private final AtomicInteger checkTotal = new AtomicInteger();
+    /**
+     * The combined progress of all downloads, from 0 to 100.
+     */
+    private final AtomicInteger percent = new AtomicInteger();
+    /**
+     * How many files have made it through every stage.
+     */
+    private final AtomicInteger committed = new AtomicInteger();
+    /**
+     * How many files are being downloaded.
+     */
+    private final AtomicInteger totalFiles = new AtomicInteger();
+    /**
+     * The stage each file in the pipeline is in. Files leave once they are committed.
+     */
+    private final Map<String, UpdatePipeline.Stage> fileStages = new ConcurrentHashMap<>();
+    /**
+     * Where the downloaded byte count comes from.
+     */
+    private volatile LongSupplier downloadedBytes = () -> 0;
+    /**
+     * Where the finer grained download progress comes from, from 0 to 1. Until it is set, the last percent is used.
+     */
+    private volatile DoubleSupplier downloadFraction = () -> percent.get() / 100.0;
+    /**
+     * When files started downloading, or 0 if they haven't.
+     */
+    private volatile long downloadStartTime = 0;
+
+    /**
+     * Set where the downloaded byte count comes from, this is read when sampling instead of being pushed on every read.
+     *
+     * @param downloadedBytes Gets the bytes downloaded so far.
+     */
+    public void setDownloadedBytes(LongSupplier downloadedBytes) {
+        this.downloadedBytes = downloadedBytes;
+    }
+
+    /**
+     * Set where the download progress comes from, this is read when sampling.
+     *
+     * @param downloadFraction Gets how much of the download is done, from 0 to 1.
+     */
+    public void setDownloadFraction(DoubleSupplier downloadFraction) {
+        this.downloadFraction = downloadFraction;
+    }
+
+    /**
+     * Take a consistent enough copy of the progress. Meant to be called on a timer, not by the workers.
+     *
+     * @return The progress right now.
+     */
+    public Snapshot sample() {
+        long startTime = downloadStartTime;
+        long bytes = downloadedBytes.getAsLong();
+        double fraction = Math.min(1, downloadFraction.getAsDouble());
+        int currentPercent = (int) (fraction * 100);
+        long bytesPerSecond = 0;
+        long secondsLeft = -1;
+        if (startTime != 0) {
+            long millis = Math.max(1, TimeUnit.MILLISECONDS.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS));
+            bytesPerSecond = bytes * 1000 / millis;
+            // the fraction is measured against the whole update and doesn't count retried bytes twice, so the rate it moves at is the rate the update moves at
+            if (fraction > 0) {
+                secondsLeft = (long) (millis * (1 - fraction) / fraction / 1000);
+            }
+        }
+        Map<UpdatePipeline.Stage, Integer> stageCounts = new EnumMap<>(UpdatePipeline.Stage.class);
+        for (UpdatePipeline.Stage stage : fileStages.values()) {
+            stageCounts.merge(stage, 1, Integer::sum);
+        }
+        return new Snapshot(status.get(), checked.get(), checkTotal.get(), startTime != 0, currentPercent, committed.get(), totalFiles.get(), bytes, bytesPerSecond, secondsLeft, stageCounts);
+    }
+
+    @Override
+    public void statusChanged(String status) {
+        this.status.set(status);
+    }
+
+    @Override
+    public void fileChecked(String key, int checked, int total) {
+        this.checkTotal.set(total);
+        this.checked.set(checked);
+    }
+
+    @Override
+    public void downloadStarted(int files) {
+        totalFiles.set(files);
+        downloadStartTime = System.nanoTime();
+        status.set("Downloading " + files + " file(s)");
+    }
+
+    @Override
+    public void downloadProgress(int percent) {
+        this.percent.set(percent);
+    }
+
+    @Override
+    public void stageStarted(UpdatePipeline.Stage stage, String key) {
+        fileStages.put(key, stage);
+    }
+
+    @Override
+    public void fileCommitted(String key, int committed, int total) {
+        fileStages.remove(key);
+        this.committed.set(committed);
+    }
+
+    /**
+     * The progress at one point in time.
+     *
+     * @param status         What the engine is doing.
+     * @param checked        How many files in the manifest have been checked.
+     * @param checkTotal     How many files are in the manifest.
+     * @param downloading    Have files started downloading?
+     * @param percent        The combined progress of all downloads, from 0 to 100.
+     * @param committed      How many files have made it through every stage.
+     * @param totalFiles     How many files are being downloaded.
+     * @param bytes          How many bytes have been downloaded.
+     * @param bytesPerSecond The average download speed.
+     * @param secondsLeft    About how long the downloads have left, or -1 if it's not known yet.
+     * @param stageCounts    How many files are in each stage right now.
+     */
+    public record Snapshot(String status, int checked, int checkTotal, boolean downloading, int percent, int committed,
+                           int totalFiles, long bytes, long bytesPerSecond, long secondsLeft,
+                           Map<UpdatePipeline.Stage, Integer> stageCounts) {
+    }
+}
@@ -19,12 +19,23 @@ package lol.hyper.customlauncher.windows;
 
 import lol.hyper.customlauncher.ConfigHandler;
 import lol.hyper.customlauncher.tools.PopUpWindow;
+import lol.hyper.customlauncher.ttrupdater.AppliedManifest;
+import lol.hyper.customlauncher.ttrupdater.BackgroundVerifier;
+import lol.hyper.customlauncher.ttrupdater.InstallCleaner;
+import lol.hyper.customlauncher.ttrupdater.InstallLock;
+import lol.hyper.customlauncher.ttrupdater.IntegrityScrubber;
+import lol.hyper.customlauncher.ttrupdater.PatchCache;
+import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConfigPanel extends JPanel {
 
@@ -62,6 +73,7 @@ public class ConfigPanel extends JPanel {
         JLabel showFieldOfficeNotificationsText = new JLabel("<html>Show field office notifications?</html>");
         showFieldOfficeNotificationsBox = new JCheckBox();
         JButton saveButton = new JButton("Save");
+        JButton cleanUpButton = new JButton("Clean up");
 
         JButton browseButton = new JButton("Browse");
         browseButton.addActionListener(e -> {
@@ -96,9 +108,12 @@ public class ConfigPanel extends JPanel {
                 logger.info("Saving config");
             }
         });
+        // removes files TTR no longer uses, off the EDT since it waits on the background check
+        cleanUpButton.addActionListener(e -> new Thread(() -> cleanUp(configHandler.getInstallPath())).start());
         ttrInstall.setBounds(20, 15, 100, 30);
         ttrInstallBox.setBounds(120, 15, 250, 30);
         saveButton.setBounds(20, 200, 60, 30);
+        cleanUpButton.setBounds(90, 200, 90, 30);
         ttrInstallBox.setMaximumSize(new Dimension(200, 25));
         showInvasionNotificationsText.setBounds(20, 60, 100, 80);
         showInvasionNotificationsBox.setBounds(120, 75, 100, 30);
@@ -109,10 +124,130 @@ public class ConfigPanel extends JPanel {
         add(ttrInstall);
         add(ttrInstallBox);
         add(saveButton);
+        add(cleanUpButton);
         add(showInvasionNotificationsText);
         add(showInvasionNotificationsBox);
         add(showFieldOfficeNotificationsText);
         add(showFieldOfficeNotificationsBox);
         add(browseButton);
     }
+
+    /**
+     * Remove files from the TTR install that are no longer in the last manifest we applied.
+     * The install is only locked while orphans are found and removed, not while the user decides, so an update never waits on the dialog.
+     *
+     * @param installPath The TTR install path.
+     */
+    private void cleanUp(File installPath) {
+        try {
+            BackgroundVerifier.waitForFinish();
+        } catch (InterruptedException exception) {
+            logger.error("Interrupted while waiting for the background file check.", exception);
+            return;
+        }
+        InstallLock installLock = lockInstall(installPath);
+        if (installLock == null) {
+            return;
+        }
+        AppliedManifest lastApplied;
+        InstallCleaner.OrphanReport orphanReport;
+        try {
+            lastApplied = AppliedManifest.load(installPath);
+            if (lastApplied == null) {
+                showMessage("Update TTR before cleaning up its files.");
+                return;
+            }
+            orphanReport = new InstallCleaner(installPath, new PatchCache(installPath)).findOrphans(lastApplied.getPatches(), Set.of());
+        } finally {
+            unlockInstall(installLock);
+        }
+        if (orphanReport.isEmpty()) {
+            showMessage("Nothing to clean up.");
+            return;
+        }
+        String message = orphanReport.files().size() + " file(s) are no longer used by TTR (" + FileUtils.byteCountToDisplaySize(orphanReport.reclaimableBytes()) + "). Remove them?";
+        if (!confirm(message)) {
+            return;
+        }
+
+        installLock = lockInstall(installPath);
+        if (installLock == null) {
+            return;
+        }
+        InstallCleaner.OrphanReport removed;
+        try {
+            // an update may have run while the dialog was open, only remove files that are still unused
+            lastApplied = AppliedManifest.load(installPath);
+            if (lastApplied == null) {
+                return;
+            }
+            InstallCleaner installCleaner = new InstallCleaner(installPath, new PatchCache(installPath));
+            removed = installCleaner.recheck(lastApplied.getPatches(), orphanReport);
+            installCleaner.remove(removed);
+        } finally {
+            unlockInstall(installLock);
+        }
+        logger.info("Removed " + removed.files().size() + " unused file(s) from " + installPath.getAbsolutePath());
+        showMessage("Removed " + removed.files().size() + " file(s).");
+    }
+
+    /**
+     * Stop the scrubber since it uses the patch cache too, then lock the install so an update in this or another launcher can't change it while we clean up.
+     *
+     * @param installPath The TTR install path.
+     * @return The lock, or null if something else is using the install. The user is told to try again later.
+     */
+    private InstallLock lockInstall(File installPath) {
+        IntegrityScrubber.pause();
+        InstallLock installLock = null;
+        try {
+            installLock = InstallLock.tryAcquire(installPath);
+            if (installLock == null) {
+                showMessage("TTR is being updated, clean up once it is done.");
+            }
+        } catch (IOException exception) {
+            logger.error("Unable to lock " + installPath.getAbsolutePath(), exception);
+            showMessage("Unable to clean up, see the log for details.");
+        }
+        if (installLock == null) {
+            IntegrityScrubber.resume();
+        }
+        return installLock;
+    }
+
+    /**
+     * Let updates and the scrubber use the install again.
+     *
+     * @param installLock The lock from {@link #lockInstall(File)}.
+     */
+    private void unlockInstall(InstallLock installLock) {
+        installLock.close();
+        IntegrityScrubber.resume();
+    }
+
+    /**
+     * Show a message on the EDT.
+     *
+     * @param message The message.
+     */
+    private void showMessage(String message) {
+        SwingUtilities.invokeLater(() -> new PopUpWindow(null, message));
+    }
+
+    /**
+     * Ask the user a yes or no question on the EDT, and wait for the answer.
+     *
+     * @param message The question.
+     * @return True if the user said yes.
+     */
+    private boolean confirm(String message) {
+        AtomicInteger choice = new AtomicInteger(JOptionPane.NO_OPTION);
+        try {
+            SwingUtilities.invokeAndWait(() -> choice.set(JOptionPane.showConfirmDialog(this, message, "Clean up", JOptionPane.YES_NO_OPTION)));
+        } catch (InterruptedException | InvocationTargetException exception) {
+            logger.error("Unable to ask about cleaning up.", exception);
+            return false;
+        }
+        return choice.get() == JOptionPane.YES_OPTION;
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How much copying a file allocates with {@link BufferPool}, compared to a new buffer for every copy.
+ * Run with the GC profiler to see the allocations: mvn -P benchmark test -Dbenchmark=BufferPoolBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferPoolBenchmark {
+
+    /**
+     * How big the file being copied is.
+     */
+    @Param({"65536", "4194304"})
+    public int fileSize;
+
+    /**
+     * The data a stream copy reads.
+     */
+    private byte[] content;
+    /**
+     * The file a channel copy writes.
+     */
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createContent() throws Exception {
+        content = MockCdn.generateContent(fileSize, 1);
+        file = File.createTempFile("buffers", ".bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws Exception {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Copy a stream with a new 8K array, like the updater used to.
+     */
+    @Benchmark
+    public long streamNewSmallArray() throws Exception {
+        return copy(new byte[8192]);
+    }
+
+    /**
+     * Copy a stream with a new 1M array, like the updater did once its buffers were made bigger.
+     */
+    @Benchmark
+    public long streamNewLargeArray() throws Exception {
+        return copy(new byte[1024 * 1024]);
+    }
+
+    /**
+     * Copy a stream with an array from the pool.
+     */
+    @Benchmark
+    public long streamPooledArray() throws Exception {
+        byte[] buffer = BufferPool.acquireArray(fileSize);
+        try {
+            return copy(buffer);
+        } finally {
+            BufferPool.release(buffer, fileSize);
+        }
+    }
+
+    /**
+     * Write a file through a new 1M direct buffer, like every file written used to.
+     */
+    @Benchmark
+    public long channelNewDirectBuffer() throws Exception {
+        return write(ByteBuffer.allocateDirect(1024 * 1024));
+    }
+
+    /**
+     * Write a file through a direct buffer from the pool.
+     */
+    @Benchmark
+    public long channelPooledDirectBuffer() throws Exception {
+        ByteBuffer buffer = BufferPool.acquireDirect(fileSize);
+        try {
+            return write(buffer);
+        } finally {
+            BufferPool.release(buffer, fileSize);
+        }
+    }
+
+    /**
+     * Copy the content to nowhere through a buffer.
+     *
+     * @param buffer The buffer.
+     * @return How many bytes were copied.
+     */
+    private long copy(byte[] buffer) throws Exception {
+        long copied = 0;
+        try (InputStream input = new ByteArrayInputStream(content); OutputStream output = OutputStream.nullOutputStream()) {
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                output.write(buffer, 0, n);
+                copied += n;
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Write the content to the file through a buffer.
+     *
+     * @param buffer The buffer.
+     * @return How many bytes were written.
+     */
+    private long write(ByteBuffer buffer) throws Exception {
+        long position = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (position < content.length) {
+                buffer.clear();
+                int length = Math.min(buffer.capacity(), content.length - (int) position);
+                buffer.put(content, (int) position, length);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BufferPoolTest {
+
+    @Test
+    void slowDownloadsGetSmallerBuffers() {
+        // at about 1 MB/s, 50 ms of data fits in the smallest buffer
+        for (int i = 0; i < 64; i++) {
+            BufferPool.recordDownload(1024 * 1024, TimeUnit.SECONDS.toNanos(1));
+        }
+        byte[] slow = BufferPool.acquireDownloadArray(64L * 1024 * 1024);
+        assertEquals(64 * 1024, slow.length);
+        BufferPool.release(slow, 0);
+
+        // at about 100 MB/s it gets the biggest one again
+        for (int i = 0; i < 64; i++) {
+            BufferPool.recordDownload(100L * 1024 * 1024, TimeUnit.SECONDS.toNanos(1));
+        }
+        byte[] fast = BufferPool.acquireDownloadArray(64L * 1024 * 1024);
+        assertEquals(1024 * 1024, fast.length);
+        BufferPool.release(fast, 0);
+
+        // the speed never makes a small file's buffer bigger
+        byte[] small = BufferPool.acquireDownloadArray(100 * 1024);
+        assertEquals(64 * 1024, small.length);
+        BufferPool.release(small, 0);
+    }
+}
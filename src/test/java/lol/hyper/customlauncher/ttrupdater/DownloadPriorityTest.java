@@ -0,0 +1,52 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadPriorityTest {
+
+    @TempDir
+    File folder;
+
+    @Test
+    void manifestSizeComesBeforeTheLocalCopy() throws Exception {
+        File localFile = new File(folder, "phase_3.mf");
+        Files.write(localFile.toPath(), new byte[500]);
+
+        assertEquals(300, DownloadPriority.estimateSize(new JSONObject().put("compSize", 100).put("size", 300), localFile));
+        assertEquals(100, DownloadPriority.estimateSize(new JSONObject().put("compSize", 100), localFile));
+        assertEquals(500, DownloadPriority.estimateSize(new JSONObject(), localFile));
+    }
+
+    @Test
+    void newFilesAreOrderedByTheirManifestSize() {
+        File missing = new File(folder, "phase_4.mf");
+
+        assertEquals(100, DownloadPriority.estimateSize(new JSONObject().put("compSize", 100), missing));
+        assertEquals(Long.MAX_VALUE, DownloadPriority.estimateSize(new JSONObject(), missing));
+    }
+}
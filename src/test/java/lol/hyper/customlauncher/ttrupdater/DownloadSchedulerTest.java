@@ -0,0 +1,164 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadSchedulerTest {
+
+    private static final String KEY = "phase_3.mf";
+
+    @TempDir
+    File folder;
+
+    private MockCdn cdn;
+    private DownloadScheduler downloadScheduler;
+    private String hash;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        cdn = new MockCdn();
+        cdn.addFile(KEY, MockCdn.generateContent(2_000_000, 3));
+        hash = cdn.getManifest().getJSONObject(KEY).getString("hash");
+        downloadScheduler = new DownloadScheduler(2, 2, 0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        downloadScheduler.close();
+        cdn.close();
+    }
+
+    @Test
+    void truncatedDownloadResumesFromPartFile() throws Exception {
+        cdn.addFault(KEY, MockCdn.Fault.TRUNCATE);
+        File output = new File(folder, "phase_3.mf.bz2");
+
+        downloadScheduler.download(cdn.getFileURL(KEY), output, null, transfer());
+
+        assertArrayEquals(cdn.getCompressed(KEY), Files.readAllBytes(output.toPath()));
+        assertResumed(cdn.getRanges(KEY));
+        assertFalse(new File(folder, "phase_3.mf.bz2.part").exists());
+    }
+
+    @Test
+    void brokenPartStateStartsOver() throws Exception {
+        File output = new File(folder, "phase_3.mf.bz2");
+        // the launcher was killed while the state was being written
+        Files.write(new File(folder, "phase_3.mf.bz2.part").toPath(), Arrays.copyOf(cdn.getCompressed(KEY), 1000));
+        Files.writeString(new File(folder, "phase_3.mf.bz2.part.json").toPath(), "{\"url\":\"http");
+
+        downloadScheduler.download(cdn.getFileURL(KEY), output, null, transfer());
+
+        assertArrayEquals(cdn.getCompressed(KEY), Files.readAllBytes(output.toPath()));
+        assertEquals(Arrays.asList((String) null), cdn.getRanges(KEY));
+        assertFalse(new File(folder, "phase_3.mf.bz2.part.json").exists());
+    }
+
+    @Test
+    void truncatedStreamResumesFromConsumedOffset() throws Exception {
+        cdn.addFault(KEY, MockCdn.Fault.TRUNCATE);
+        File output = new File(folder, KEY);
+
+        assertEquals(hash, downloadScheduler.downloadAndExtract(cdn.getFileURL(KEY), output, 0, transfer()));
+        assertEquals(hash, PatchVerifier.calcSHA1(output));
+        assertResumed(cdn.getRanges(KEY));
+    }
+
+    @Test
+    void streamResumesMoreThanOnce() throws Exception {
+        cdn.addFault(KEY, MockCdn.Fault.TRUNCATE);
+        cdn.addFault(KEY, MockCdn.Fault.TRUNCATE);
+        cdn.addFault(KEY, MockCdn.Fault.SERVER_ERROR);
+
+        assertEquals(hash, downloadScheduler.downloadAndExtract(cdn.getFileURL(KEY), new File(folder, KEY), 0, transfer()));
+        List<String> ranges = cdn.getRanges(KEY);
+        assertEquals(4, ranges.size());
+        assertNull(ranges.get(0));
+        // the 500 didn't send anything, so the last request asks for the same range again
+        assertEquals(ranges.get(2), ranges.get(3));
+        assertTrue(rangeStart(ranges.get(2)) > rangeStart(ranges.get(1)));
+    }
+
+    @Test
+    void streamStartsOverWhenServerIgnoresRange() throws Exception {
+        cdn.addFault(KEY, MockCdn.Fault.TRUNCATE);
+        cdn.addFault(KEY, MockCdn.Fault.NO_RANGE);
+        File output = new File(folder, KEY);
+
+        assertEquals(hash, downloadScheduler.downloadAndExtract(cdn.getFileURL(KEY), output, 0, transfer()));
+        assertEquals(hash, PatchVerifier.calcSHA1(output));
+        List<String> ranges = cdn.getRanges(KEY);
+        assertEquals(3, ranges.size());
+        assertNull(ranges.get(2));
+    }
+
+    @Test
+    void streamGivesUpAfterMaxAttempts() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            cdn.addFault(KEY, i % 2 == 0 ? MockCdn.Fault.TRUNCATE : MockCdn.Fault.SERVER_ERROR);
+        }
+
+        assertThrows(IOException.class, () -> downloadScheduler.downloadAndExtract(cdn.getFileURL(KEY), new File(folder, KEY), 0, transfer()));
+        assertEquals(5, cdn.getRequests(KEY));
+    }
+
+    /**
+     * Get somewhere for a download to report its progress.
+     *
+     * @return A transfer nobody listens to.
+     */
+    private static TransferProgress.Transfer transfer() {
+        return new TransferProgress(percent -> {}).add(0);
+    }
+
+    /**
+     * Make sure the second request picked up after the bytes the first one sent.
+     *
+     * @param ranges The Range headers of each request.
+     */
+    private void assertResumed(List<String> ranges) {
+        assertEquals(2, ranges.size(), ranges.toString());
+        assertNull(ranges.get(0));
+        long start = rangeStart(ranges.get(1));
+        assertTrue(start > 0 && start <= cdn.getCompressed(KEY).length / 2, ranges.toString());
+    }
+
+    /**
+     * Get the first byte a Range header asks for.
+     *
+     * @param range The header, like bytes=100-
+     * @return The first byte.
+     */
+    private static long rangeStart(String range) {
+        assertNotNull(range);
+        return Long.parseLong(Arrays.stream(range.substring("bytes=".length()).split("-")).findFirst().orElseThrow());
+    }
+}
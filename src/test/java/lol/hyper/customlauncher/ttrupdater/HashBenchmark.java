@@ -0,0 +1,104 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How fast a file is hashed by {@link PatchVerifier#calcSHA1(File)}, compared to the stream it replaced and to memory mapping.
+ * The file stays in the page cache, so this measures the read path and hashing, not the disk.
+ * Run with the benchmark profile: mvn -P benchmark test -Dbenchmark=HashBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    /**
+     * How big the file is.
+     */
+    @Param({"65536", "4194304", "67108864"})
+    public int fileSize;
+
+    /**
+     * The file being hashed.
+     */
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws Exception {
+        file = File.createTempFile("hash", ".bin");
+        Files.write(file.toPath(), MockCdn.generateContent(fileSize, 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws Exception {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * The current way: positional reads into a pooled direct buffer.
+     */
+    @Benchmark
+    public String positionalRead() throws Exception {
+        return PatchVerifier.calcSHA1(file);
+    }
+
+    /**
+     * The way files were hashed before: a FileInputStream read into an 8K array.
+     */
+    @Benchmark
+    public String legacyStream() throws Exception {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        byte[] buffer = new byte[8192];
+        try (InputStream input = new FileInputStream(file)) {
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                sha1.update(buffer, 0, n);
+            }
+        }
+        return PatchVerifier.toHex(sha1.digest());
+    }
+
+    /**
+     * Hashing through a read only mapping, which was dropped because mapped files stay locked on Windows.
+     */
+    @Benchmark
+    public String memoryMapped() throws Exception {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            sha1.update(region);
+        }
+        return PatchVerifier.toHex(sha1.digest());
+    }
+}
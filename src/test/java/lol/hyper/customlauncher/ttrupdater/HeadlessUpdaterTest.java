@@ -0,0 +1,163 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeadlessUpdaterTest {
+
+    @TempDir
+    File tempFolder;
+
+    private File installPath;
+
+    private MockCdn cdn;
+
+    @BeforeEach
+    void startCdn() throws Exception {
+        cdn = new MockCdn();
+        installPath = new File(tempFolder, "ttr-files");
+        assertTrue(installPath.mkdir());
+    }
+
+    @AfterEach
+    void stopCdn() {
+        cdn.close();
+    }
+
+    @Test
+    void manifestOnTheCdnIsInstalled() throws Exception {
+        cdn.generateFiles(4, 200_000, 1);
+        cdn.addFault("file1.bin", MockCdn.Fault.TRUNCATE);
+        TestInstall.configure(installPath, cdn, Map.of("streamDownloads", true));
+
+        assertEquals(HeadlessUpdater.EXIT_OK, HeadlessUpdater.run(new String[]{"--update-only", "--manifest", MockCdn.MANIFEST_PATH}));
+        TestInstall.assertInstalled(installPath, cdn.getManifest());
+        int requests = cdn.getTotalRequests();
+
+        assertEquals(HeadlessUpdater.EXIT_OK, HeadlessUpdater.run(new String[]{"--update-only", "--manifest", MockCdn.MANIFEST_PATH}));
+        // everything is installed, so nothing is downloaded again
+        assertEquals(requests, cdn.getTotalRequests());
+    }
+
+    @Test
+    void manifestFileUsesTheGivenDownloadURL() throws Exception {
+        cdn.generateFiles(3, 100_000, 1);
+        File manifest = new File(tempFolder, "patchmanifest.json");
+        Files.writeString(manifest.toPath(), cdn.getManifest().toString(), StandardCharsets.UTF_8);
+        // nothing listens here, so every file has to come from --download-url
+        TestInstall.configure(installPath, cdn, Map.of("patchDownloadURL", "http://127.0.0.1:1/"));
+
+        assertEquals(HeadlessUpdater.EXIT_OK, HeadlessUpdater.run(new String[]{"--update-only", "--manifest", manifest.getAbsolutePath(), "--download-url", cdn.getDownloadURL()}));
+        TestInstall.assertInstalled(installPath, cdn.getManifest());
+    }
+
+    @Test
+    void installLockedInThisLauncherExitsLocked() throws Exception {
+        cdn.generateFiles(2, 100_000, 1);
+        TestInstall.configure(installPath, cdn, Map.of());
+
+        try (InstallLock ignored = InstallLock.tryAcquire(installPath)) {
+            assertNotNull(ignored);
+            CompletableFuture<Integer> exitCode = CompletableFuture.supplyAsync(() -> HeadlessUpdater.run(new String[]{"--update-only", "--manifest", MockCdn.MANIFEST_PATH}));
+            assertEquals(HeadlessUpdater.EXIT_LOCKED, exitCode.get(30, TimeUnit.SECONDS));
+        }
+        assertEquals(0, cdn.getTotalRequests());
+    }
+
+    @Test
+    void installLockedByAnotherLauncherExitsLocked() throws Exception {
+        cdn.generateFiles(2, 100_000, 1);
+        TestInstall.configure(installPath, cdn, Map.of());
+
+        // lock the install from a separate process, like a second launcher would
+        File locker = new File(tempFolder, "Locker.java");
+        Files.writeString(locker.toPath(), """
+                import java.nio.channels.FileChannel;
+                import java.nio.file.Path;
+                import java.nio.file.StandardOpenOption;
+
+                public class Locker {
+                    public static void main(String[] args) throws Exception {
+                        try (FileChannel channel = FileChannel.open(Path.of(args[0]), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                            channel.lock();
+                            System.out.println("locked");
+                            System.in.read();
+                        }
+                    }
+                }
+                """, StandardCharsets.UTF_8);
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process process = new ProcessBuilder(java, locker.getAbsolutePath(), new File(installPath, InstallLock.LOCK_FILE_NAME).getAbsolutePath()).redirectErrorStream(true).start();
+        try {
+            BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("locked", output.readLine());
+
+            assertEquals(HeadlessUpdater.EXIT_LOCKED, HeadlessUpdater.run(new String[]{"--update-only", "--manifest", MockCdn.MANIFEST_PATH}));
+            assertEquals(0, cdn.getTotalRequests());
+        } finally {
+            process.destroy();
+            process.waitFor(30, TimeUnit.SECONDS);
+        }
+        assertEquals(HeadlessUpdater.EXIT_OK, HeadlessUpdater.run(new String[]{"--update-only", "--manifest", MockCdn.MANIFEST_PATH}));
+        TestInstall.assertInstalled(installPath, cdn.getManifest());
+    }
+
+    @Test
+    void missingInstallFolderIsNotCreated() throws Exception {
+        cdn.generateFiles(1, 100_000, 1);
+        File missing = new File(tempFolder, "missing");
+        TestInstall.configure(missing, cdn, Map.of());
+
+        assertEquals(HeadlessUpdater.EXIT_NO_INSTALL, HeadlessUpdater.run(new String[]{"--update-only", "--manifest", MockCdn.MANIFEST_PATH}));
+        assertFalse(missing.exists());
+        assertEquals(0, cdn.getTotalRequests());
+    }
+
+    @Test
+    void unreadableManifestFails() throws Exception {
+        File manifest = new File(tempFolder, "patchmanifest.json");
+        Files.writeString(manifest.toPath(), "not a manifest", StandardCharsets.UTF_8);
+        TestInstall.configure(installPath, cdn, Map.of());
+
+        assertEquals(HeadlessUpdater.EXIT_BAD_MANIFEST, HeadlessUpdater.run(new String[]{"--update-only", "--manifest", manifest.getAbsolutePath()}));
+        assertEquals(HeadlessUpdater.EXIT_BAD_MANIFEST, HeadlessUpdater.run(new String[]{"--update-only", "--manifest", "/missing.txt"}));
+    }
+
+    @Test
+    void badArgumentsPrintUsage() {
+        assertEquals(HeadlessUpdater.EXIT_USAGE, HeadlessUpdater.run(new String[]{"--update-only"}));
+        assertEquals(HeadlessUpdater.EXIT_USAGE, HeadlessUpdater.run(new String[]{"--update-only", "--manifest"}));
+        assertEquals(HeadlessUpdater.EXIT_USAGE, HeadlessUpdater.run(new String[]{"--update-only", "--manifest", MockCdn.MANIFEST_PATH, "--verbose"}));
+    }
+}
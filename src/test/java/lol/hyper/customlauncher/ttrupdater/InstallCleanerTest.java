@@ -0,0 +1,70 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InstallCleanerTest {
+
+    @TempDir
+    File installPath;
+
+    @Test
+    void recheckOnlyKeepsAgreedFilesThatAreStillUnused() throws Exception {
+        PatchCache patchCache = new PatchCache(installPath);
+        for (String key : List.of("keep.bin", "a.bin", "b.bin", "c.bin")) {
+            File file = new File(installPath, key);
+            Files.write(file.toPath(), new byte[100]);
+            patchCache.put(key, file, "hash");
+        }
+        InstallCleaner installCleaner = new InstallCleaner(installPath, patchCache);
+        InstallCleaner.OrphanReport agreed = installCleaner.findOrphans(manifest("keep.bin", "c.bin"), Set.of());
+        assertEquals(List.of("a.bin", "b.bin"), agreed.files());
+
+        // an update brought a.bin back and dropped c.bin while the user was deciding
+        InstallCleaner.OrphanReport recheck = installCleaner.recheck(manifest("keep.bin", "a.bin"), agreed);
+
+        assertEquals(List.of("b.bin"), recheck.files());
+        assertEquals(List.of("b.bin"), recheck.cacheKeys());
+        assertEquals(100, recheck.reclaimableBytes());
+    }
+
+    /**
+     * Make a manifest that only has file names.
+     *
+     * @param keys The file names.
+     * @return The manifest.
+     */
+    private static JSONObject manifest(String... keys) {
+        JSONObject manifest = new JSONObject();
+        for (String key : keys) {
+            manifest.put(key, new JSONObject());
+        }
+        return manifest;
+    }
+}
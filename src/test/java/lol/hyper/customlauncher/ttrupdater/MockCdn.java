@@ -0,0 +1,415 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lol.hyper.customlauncher.tools.OSDetection;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for TTR's CDN. It serves a generated patch manifest and the bzip2 files it points to from a local HTTP server.
+ * Files can be told to fail in different ways, so the updater's retries can be tested without the real CDN.
+ */
+public class MockCdn implements Closeable {
+
+    /**
+     * The ways a response can go wrong.
+     */
+    public enum Fault {
+        /**
+         * Send the file slowly, a small chunk at a time.
+         */
+        SLOW,
+        /**
+         * Promise the whole file, then close the connection halfway through.
+         */
+        TRUNCATE,
+        /**
+         * Answer with a 500.
+         */
+        SERVER_ERROR,
+        /**
+         * Send the whole file with one byte flipped in the middle.
+         */
+        CORRUPT,
+        /**
+         * Answer a Range request with the whole file, like a server that doesn't support resuming.
+         */
+        NO_RANGE
+    }
+
+    /**
+     * Where the manifest is served from.
+     */
+    public static final String MANIFEST_PATH = "/patchmanifest.txt";
+    /**
+     * How much a slow response sends at once.
+     */
+    private static final int SLOW_CHUNK = 16 * 1024;
+
+    /**
+     * The HTTP server.
+     */
+    private final HttpServer server;
+    /**
+     * The threads that answer requests.
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    /**
+     * The manifest being served.
+     */
+    private final JSONObject manifest = new JSONObject();
+    /**
+     * The compressed files, by their download name.
+     */
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    /**
+     * The faults to apply to the next requests for each download name, in order.
+     */
+    private final Map<String, Deque<Fault>> faults = new ConcurrentHashMap<>();
+    /**
+     * How many requests each download name got.
+     */
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    /**
+     * The Range header of every request for each download name, null if it didn't send one.
+     */
+    private final Map<String, List<String>> ranges = new ConcurrentHashMap<>();
+
+    /**
+     * Start a mock CDN on a free local port.
+     */
+    public MockCdn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext(MANIFEST_PATH, this::serveManifest);
+        server.createContext("/patches/", this::serveFile);
+        server.start();
+    }
+
+    /**
+     * Make up the contents of a file. The same seed always gives the same contents.
+     * The contents compress about as well as TTR's phase files.
+     *
+     * @param size How big the file is.
+     * @param seed The seed for the contents.
+     * @return The contents.
+     */
+    public static byte[] generateContent(int size, long seed) {
+        Random random = new Random(seed);
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            // mostly a small alphabet with some noise, so bzip2 has something to do
+            content[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt(256) : 'a' + random.nextInt(16));
+        }
+        return content;
+    }
+
+    /**
+     * Add generated files to the manifest, named file0.bin, file1.bin and so on.
+     *
+     * @param count How many files to add.
+     * @param size  How big each file is.
+     * @param seed  The seed for the first file's contents, the rest follow on from it.
+     */
+    public void generateFiles(int count, int size, long seed) throws IOException {
+        for (int i = 0; i < count; i++) {
+            addFile("file" + i + ".bin", generateContent(size, seed + i));
+        }
+    }
+
+    /**
+     * Add a file to the manifest. Adding a key that is already there replaces it.
+     *
+     * @param key     The file name in the manifest.
+     * @param content The file's contents.
+     * @return The file's download name.
+     */
+    public String addFile(String key, byte[] content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (BZip2CompressorOutputStream output = new BZip2CompressorOutputStream(compressed)) {
+            output.write(content);
+        }
+        byte[] compressedBytes = compressed.toByteArray();
+        String hash = sha1(content);
+        String downloadName = key.replace('/', '_') + "." + hash.substring(0, 8).toLowerCase() + ".bz2";
+        objects.put(downloadName, compressedBytes);
+
+        JSONObject entry = new JSONObject();
+        entry.put("dl", downloadName);
+        entry.put("hash", hash);
+        entry.put("compHash", sha1(compressedBytes));
+        entry.put("only", new JSONArray(List.of(OSDetection.osType)));
+        synchronized (manifest) {
+            manifest.put(key, entry);
+        }
+        return downloadName;
+    }
+
+    /**
+     * Make the next request for a file fail. Calling this more than once queues up faults for the requests after that.
+     *
+     * @param key   The file name in the manifest.
+     * @param fault What goes wrong.
+     */
+    public void addFault(String key, Fault fault) {
+        faults.computeIfAbsent(getDownloadName(key), name -> new ArrayDeque<>()).add(fault);
+    }
+
+    /**
+     * Get a copy of the manifest being served.
+     *
+     * @return The manifest.
+     */
+    public JSONObject getManifest() {
+        synchronized (manifest) {
+            return new JSONObject(manifest.toString());
+        }
+    }
+
+    /**
+     * Get the root URL, manifests are read from here.
+     *
+     * @return The URL, without a trailing slash.
+     */
+    public String getBaseURL() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Get the root URL files are downloaded from.
+     *
+     * @return The URL, with a trailing slash.
+     */
+    public String getDownloadURL() {
+        return getBaseURL() + "/patches/";
+    }
+
+    /**
+     * Get the URL of a file's download.
+     *
+     * @param key The file name in the manifest.
+     * @return The URL.
+     */
+    public URL getFileURL(String key) throws MalformedURLException {
+        return new URL(getDownloadURL() + getDownloadName(key));
+    }
+
+    /**
+     * Get a file's download name.
+     *
+     * @param key The file name in the manifest.
+     * @return The download name.
+     */
+    public String getDownloadName(String key) {
+        synchronized (manifest) {
+            return manifest.getJSONObject(key).getString("dl");
+        }
+    }
+
+    /**
+     * Get a file's compressed contents.
+     *
+     * @param key The file name in the manifest.
+     * @return The bzip2 file.
+     */
+    public byte[] getCompressed(String key) {
+        return objects.get(getDownloadName(key));
+    }
+
+    /**
+     * Get how many requests a file got.
+     *
+     * @param key The file name in the manifest.
+     * @return The request count.
+     */
+    public int getRequests(String key) {
+        AtomicInteger count = requests.get(getDownloadName(key));
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Get how many requests were made for files, across all files.
+     *
+     * @return The request count.
+     */
+    public int getTotalRequests() {
+        return requests.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    /**
+     * Get the Range header of every request for a file.
+     *
+     * @param key The file name in the manifest.
+     * @return The headers in the order the requests came in, null for requests without one.
+     */
+    public List<String> getRanges(String key) {
+        List<String> fileRanges = ranges.get(getDownloadName(key));
+        if (fileRanges == null) {
+            return List.of();
+        }
+        synchronized (fileRanges) {
+            return new ArrayList<>(fileRanges);
+        }
+    }
+
+    /**
+     * Stop the server.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Answer a request for the manifest.
+     *
+     * @param exchange The request.
+     */
+    private void serveManifest(HttpExchange exchange) throws IOException {
+        byte[] body = getManifest().toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    /**
+     * Answer a request for a file, applying the next fault queued for it.
+     *
+     * @param exchange The request.
+     */
+    private void serveFile(HttpExchange exchange) throws IOException {
+        String downloadName = exchange.getRequestURI().getPath().substring("/patches/".length());
+        byte[] object = objects.get(downloadName);
+        if (object == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        requests.computeIfAbsent(downloadName, name -> new AtomicInteger()).incrementAndGet();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        List<String> fileRanges = ranges.computeIfAbsent(downloadName, name -> Collections.synchronizedList(new ArrayList<>()));
+        fileRanges.add(range);
+        Deque<Fault> fileFaults = faults.get(downloadName);
+        Fault fault = null;
+        if (fileFaults != null) {
+            synchronized (fileFaults) {
+                fault = fileFaults.poll();
+            }
+        }
+
+        if (fault == Fault.SERVER_ERROR) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+
+        String etag = "\"" + sha1(object) + "\"";
+        exchange.getResponseHeaders().add("ETag", etag);
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        int start = 0;
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (fault != Fault.NO_RANGE && range != null && range.matches("bytes=\\d+-") && (ifRange == null || ifRange.equals(etag))) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            if (start >= object.length) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + object.length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (object.length - 1) + "/" + object.length);
+            exchange.sendResponseHeaders(206, object.length - start);
+        } else {
+            exchange.sendResponseHeaders(200, object.length);
+        }
+
+        byte[] body = object;
+        if (fault == Fault.CORRUPT) {
+            body = object.clone();
+            body[body.length / 2] ^= 0x55;
+        }
+        int end = fault == Fault.TRUNCATE ? start + (object.length - start) / 2 : object.length;
+        OutputStream output = exchange.getResponseBody();
+        try {
+            if (fault == Fault.SLOW) {
+                for (int position = start; position < end; position += SLOW_CHUNK) {
+                    output.write(body, position, Math.min(SLOW_CHUNK, end - position));
+                    output.flush();
+                    TimeUnit.MILLISECONDS.sleep(20);
+                }
+            } else {
+                output.write(body, start, end - start);
+                output.flush();
+            }
+        } catch (IOException | InterruptedException exception) {
+            // the client went away
+            exchange.close();
+            return;
+        }
+        if (fault == Fault.TRUNCATE) {
+            // throwing makes the server drop the connection, so the client sees the body end early instead of waiting for the rest
+            throw new IOException("Truncated " + downloadName + " on purpose");
+        }
+        exchange.close();
+    }
+
+    /**
+     * Hash bytes the way TTR's manifest does.
+     *
+     * @param bytes The bytes.
+     * @return The SHA1 as uppercase hex.
+     */
+    private static String sha1(byte[] bytes) {
+        try {
+            return PatchVerifier.toHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+}
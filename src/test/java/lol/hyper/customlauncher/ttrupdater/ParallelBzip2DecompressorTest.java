@@ -0,0 +1,93 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelBzip2DecompressorTest {
+
+    @TempDir
+    File folder;
+
+    private ParallelBzip2Decompressor decompressor;
+    private File compressed;
+    private String hash;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        decompressor = new ParallelBzip2Decompressor(4);
+        // random bytes barely compress, so the smallest block size gives a file made of many blocks
+        byte[] content = MockCdn.generateContent(1_500_000, 5);
+        compressed = new File(folder, "content.bz2");
+        try (OutputStream out = new BZip2CompressorOutputStream(Files.newOutputStream(compressed.toPath()), 1)) {
+            out.write(content);
+        }
+        hash = PatchVerifier.toHex(MessageDigest.getInstance("SHA-1").digest(content));
+    }
+
+    @AfterEach
+    void tearDown() {
+        decompressor.close();
+    }
+
+    @Test
+    void filesExtractedTogetherShareThePool() throws Exception {
+        ExecutorService extractors = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                File output = new File(folder, "content" + i);
+                results.add(extractors.submit(() -> decompressor.decompress(compressed, output, 0)));
+            }
+            for (Future<String> result : results) {
+                assertEquals(hash, result.get());
+            }
+        } finally {
+            extractors.shutdownNow();
+        }
+    }
+
+    @Test
+    void interruptIsNotRetriedAsASingleStream() {
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(IOException.class, () -> decompressor.decompress(compressed, new File(folder, "content"), 0));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.ConfigHandler;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a full install takes from a {@link MockCdn}, from checking files to the last file being installed.
+ * Run with the benchmark profile: mvn -P benchmark test -Dbenchmark=PatchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PatchBenchmark {
+
+    /**
+     * How many files are in the manifest.
+     */
+    @Param({"16"})
+    public int files;
+    /**
+     * How big each file is.
+     */
+    @Param({"262144", "2097152"})
+    public int fileSize;
+    /**
+     * Should files be extracted while they download?
+     */
+    @Param({"true", "false"})
+    public boolean streamDownloads;
+    /**
+     * What goes wrong with every fourth file.
+     */
+    @Param({"NONE", "SLOW"})
+    public String fault;
+
+    /**
+     * The CDN being updated from.
+     */
+    private MockCdn cdn;
+    /**
+     * The install being updated, empty before each run.
+     */
+    private File installPath;
+    /**
+     * The config pointing at the CDN and install.
+     */
+    private ConfigHandler configHandler;
+
+    @Setup(Level.Trial)
+    public void startCdn() throws Exception {
+        cdn = new MockCdn();
+        cdn.generateFiles(files, fileSize, 1);
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyInstall() throws Exception {
+        installPath = Files.createTempDirectory("ttr-benchmark").toFile();
+        configHandler = TestInstall.configure(installPath, cdn, Map.of("streamDownloads", streamDownloads));
+        if (!fault.equals("NONE")) {
+            for (int i = 0; i < files; i += 4) {
+                cdn.addFault("file" + i + ".bin", MockCdn.Fault.valueOf(fault));
+            }
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> fullInstall() throws Exception {
+        return TestInstall.update(configHandler, cdn.getManifest());
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteInstall() throws Exception {
+        FileUtils.deleteDirectory(installPath);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopCdn() {
+        cdn.close();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.ConfigHandler;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sets up a TTR install that updates from a {@link MockCdn}, for tests and benchmarks.
+ */
+final class TestInstall {
+
+    /**
+     * Only has static helpers.
+     */
+    private TestInstall() {
+    }
+
+    /**
+     * Write a config that points the launcher at an install folder and a mock CDN, then load it.
+     * The config is written to the working directory, like the launcher does.
+     *
+     * @param installPath The TTR install path.
+     * @param cdn         The CDN to update from.
+     * @param settings    Any other config values to set.
+     * @return The loaded config.
+     */
+    static ConfigHandler configure(File installPath, MockCdn cdn, Map<String, Object> settings) throws IOException {
+        JSONObject config = new JSONObject();
+        config.put("version", 1);
+        config.put("ttrInstallLocation", installPath.getAbsolutePath());
+        config.put("patchManifestURL", cdn.getBaseURL());
+        config.put("patchDownloadURL", cdn.getDownloadURL());
+        // the scrubber would read the install while the test does
+        config.put("scrubSpeedLimit", 0);
+        settings.forEach(config::put);
+        File configFolder = new File("config");
+        if (!configFolder.exists() && !configFolder.mkdirs()) {
+            throw new IOException("Unable to create " + configFolder.getAbsolutePath());
+        }
+        Files.writeString(new File(configFolder, "config.json").toPath(), config.toString(), StandardCharsets.UTF_8);
+        return new ConfigHandler();
+    }
+
+    /**
+     * Check and update an install the way the updater window does.
+     *
+     * @param configHandler The config.
+     * @param patches       The patch manifest.
+     * @return The files that needed downloading.
+     */
+    static Map<String, String> update(ConfigHandler configHandler, JSONObject patches) throws IOException, InterruptedException {
+        UpdateEngine updateEngine = new UpdateEngine(configHandler, configHandler.getPatchDownloadURL(), listener());
+        try (InstallLock ignored = InstallLock.acquire(configHandler.getInstallPath())) {
+            Map<String, String> filesToDownload = updateEngine.checkFiles(patches);
+            updateEngine.update(patches, filesToDownload);
+            return filesToDownload;
+        }
+    }
+
+    /**
+     * Make sure every file in the manifest is installed and matches its hash.
+     *
+     * @param installPath The TTR install path.
+     * @param patches     The patch manifest.
+     */
+    static void assertInstalled(File installPath, JSONObject patches) throws Exception {
+        for (String key : patches.keySet()) {
+            File file = new File(installPath, key);
+            assertTrue(file.exists(), key + " is missing");
+            assertEquals(patches.getJSONObject(key).getString("hash"), PatchVerifier.calcSHA1(file), key + " does not match");
+        }
+    }
+
+    /**
+     * Get a listener that ignores everything.
+     *
+     * @return The listener.
+     */
+    static UpdateEngine.Listener listener() {
+        return new UpdateEngine.Listener() {
+            @Override
+            public void statusChanged(String status) {
+            }
+
+            @Override
+            public void fileChecked(String key, int checked, int total) {
+            }
+
+            @Override
+            public void downloadStarted(int files) {
+            }
+
+            @Override
+            public void downloadProgress(int percent) {
+            }
+
+            @Override
+            public void stageStarted(UpdatePipeline.Stage stage, String key) {
+            }
+
+            @Override
+            public void fileCommitted(String key, int committed, int total) {
+            }
+        };
+    }
+}
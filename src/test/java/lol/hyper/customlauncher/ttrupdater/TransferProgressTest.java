@@ -0,0 +1,91 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TransferProgressTest {
+
+    @Test
+    void bytesCountWhenEveryFileHasASize() {
+        TransferProgress progress = new TransferProgress(percent -> {});
+        TransferProgress.Transfer small = progress.add(100);
+        TransferProgress.Transfer large = progress.add(300);
+
+        assertEquals(0, progress.getPercent());
+        small.moved(50, 100);
+        assertEquals(12, progress.getPercent());
+        large.finish();
+        assertEquals(87, progress.getPercent());
+        small.finish();
+        assertEquals(100, progress.getPercent());
+    }
+
+    @Test
+    void filesCountWhenASizeIsMissing() {
+        TransferProgress progress = new TransferProgress(percent -> {});
+        TransferProgress.Transfer known = progress.add(100);
+        TransferProgress.Transfer unknown = progress.add(0);
+
+        unknown.moved(100, 200);
+        assertEquals(25, progress.getPercent());
+        known.moved(100, 100);
+        assertEquals(75, progress.getPercent());
+        // a resumed response without a length keeps the size the first one gave
+        unknown.moved(150, -1);
+        assertEquals(87, progress.getPercent());
+    }
+
+    @Test
+    void retriedBytesAreNotCountedTwice() {
+        TransferProgress progress = new TransferProgress(percent -> {});
+        TransferProgress.Transfer transfer = progress.add(1000);
+
+        transfer.moved(800, 1000);
+        // the connection dropped and the server wouldn't resume, so it starts over
+        transfer.moved(0, 1000);
+        transfer.moved(400, 1000);
+        assertEquals(40, progress.getPercent());
+        // dropped again, resumed from where it was
+        transfer.moved(400, 1000);
+        transfer.moved(600, 1000);
+        assertEquals(60, progress.getPercent());
+        // the file was bad and is fetched again
+        transfer.reset();
+        assertEquals(0, progress.getPercent());
+    }
+
+    @Test
+    void listenerOnlyHearsChanges() {
+        List<Integer> heard = new ArrayList<>();
+        TransferProgress progress = new TransferProgress(heard::add);
+        TransferProgress.Transfer transfer = progress.add(1000);
+
+        for (int position = 0; position <= 1000; position += 5) {
+            transfer.moved(position, 1000);
+        }
+        assertEquals(101, heard.size());
+        assertEquals(100, heard.get(heard.size() - 1));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import lol.hyper.customlauncher.ConfigHandler;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpdateEngineTest {
+
+    @TempDir
+    File installPath;
+
+    private MockCdn cdn;
+
+    @BeforeEach
+    void startCdn() throws Exception {
+        cdn = new MockCdn();
+    }
+
+    @AfterEach
+    void stopCdn() {
+        cdn.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void freshInstallDownloadsEveryFileOnce(boolean streamDownloads) throws Exception {
+        cdn.generateFiles(6, 200_000, 1);
+        ConfigHandler configHandler = TestInstall.configure(installPath, cdn, Map.of("streamDownloads", streamDownloads));
+
+        assertEquals(6, TestInstall.update(configHandler, cdn.getManifest()).size());
+        TestInstall.assertInstalled(installPath, cdn.getManifest());
+        assertTrue(TestInstall.update(configHandler, cdn.getManifest()).isEmpty());
+        assertEquals(6, cdn.getTotalRequests());
+    }
+
+    @Test
+    void changedEntryIsTheOnlyDownload() throws Exception {
+        cdn.generateFiles(4, 100_000, 1);
+        ConfigHandler configHandler = TestInstall.configure(installPath, cdn, Map.of());
+        TestInstall.update(configHandler, cdn.getManifest());
+
+        cdn.addFile("file2.bin", MockCdn.generateContent(120_000, 99));
+        assertEquals(Set.of("file2.bin"), TestInstall.update(configHandler, cdn.getManifest()).keySet());
+        TestInstall.assertInstalled(installPath, cdn.getManifest());
+    }
+
+    @Test
+    void slowAndFailingResponsesStillFinish() throws Exception {
+        cdn.generateFiles(4, 300_000, 1);
+        cdn.addFault("file0.bin", MockCdn.Fault.SERVER_ERROR);
+        cdn.addFault("file1.bin", MockCdn.Fault.TRUNCATE);
+        cdn.addFault("file2.bin", MockCdn.Fault.SLOW);
+        ConfigHandler configHandler = TestInstall.configure(installPath, cdn, Map.of("streamDownloads", false));
+
+        TestInstall.update(configHandler, cdn.getManifest());
+        TestInstall.assertInstalled(installPath, cdn.getManifest());
+        assertEquals(2, cdn.getRequests("file0.bin"));
+        assertEquals(2, cdn.getRequests("file1.bin"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void corruptDownloadIsFetchedAgain(boolean streamDownloads) throws Exception {
+        cdn.generateFiles(3, 300_000, 1);
+        cdn.addFault("file1.bin", MockCdn.Fault.CORRUPT);
+        ConfigHandler configHandler = TestInstall.configure(installPath, cdn, Map.of("streamDownloads", streamDownloads));
+
+        TestInstall.update(configHandler, withoutCompHashes(cdn.getManifest()));
+        TestInstall.assertInstalled(installPath, cdn.getManifest());
+        assertEquals(2, cdn.getRequests("file1.bin"));
+    }
+
+    @Test
+    void updateFailsOnceFetchAttemptsRunOut() throws Exception {
+        cdn.generateFiles(2, 300_000, 1);
+        for (int i = 0; i < 3; i++) {
+            cdn.addFault("file0.bin", MockCdn.Fault.CORRUPT);
+        }
+        ConfigHandler configHandler = TestInstall.configure(installPath, cdn, Map.of());
+
+        assertThrows(IOException.class, () -> TestInstall.update(configHandler, cdn.getManifest()));
+        assertEquals(3, cdn.getRequests("file0.bin"));
+        assertFalse(new File(installPath, "file0.bin").exists());
+    }
+
+    @Test
+    void unchangedEntryIsHashedWhenItsCacheIsStale() throws Exception {
+        cdn.generateFiles(3, 100_000, 1);
+        ConfigHandler configHandler = TestInstall.configure(installPath, cdn, Map.of());
+        TestInstall.update(configHandler, cdn.getManifest());
+
+        // same manifest, but the file was changed behind the launcher's back
+        Files.write(new File(installPath, "file1.bin").toPath(), new byte[100_000]);
+
+        assertEquals(Set.of("file1.bin"), TestInstall.update(configHandler, cdn.getManifest()).keySet());
+        TestInstall.assertInstalled(installPath, cdn.getManifest());
+    }
+
+    @Test
+    void interruptedInstallIsRolledBackBeforeChecking() throws Exception {
+        cdn.generateFiles(3, 100_000, 1);
+        ConfigHandler configHandler = TestInstall.configure(installPath, cdn, Map.of());
+        TestInstall.update(configHandler, cdn.getManifest());
+
+        // the launcher stopped after replacing file1.bin with half a file and adding extra.bin
+        File live = new File(installPath, "file1.bin");
+        File backup = new File(installPath, ".update-backup/file1.bin");
+        backup.getParentFile().mkdirs();
+        Files.move(live.toPath(), backup.toPath());
+        Files.write(live.toPath(), new byte[1000]);
+        File added = new File(installPath, "extra.bin");
+        Files.write(added.toPath(), new byte[10]);
+        Files.writeString(new File(installPath, ".update-backup/install.json").toPath(), new JSONObject().put("complete", false).put("files", new JSONObject().put("file1.bin", true).put("extra.bin", false)).toString());
+
+        assertTrue(TestInstall.update(configHandler, cdn.getManifest()).isEmpty());
+        TestInstall.assertInstalled(installPath, cdn.getManifest());
+        assertFalse(added.exists());
+        assertEquals(3, cdn.getTotalRequests());
+    }
+
+    /**
+     * Drop the compressed hashes, so a corrupt download isn't caught until it is extracted.
+     *
+     * @param manifest The manifest.
+     * @return The manifest without compHash.
+     */
+    private static JSONObject withoutCompHashes(JSONObject manifest) {
+        for (String key : manifest.keySet()) {
+            manifest.getJSONObject(key).remove("compHash");
+        }
+        return manifest;
+    }
+}
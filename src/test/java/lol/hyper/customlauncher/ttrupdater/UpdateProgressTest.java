@@ -0,0 +1,56 @@
+/*
+ * This file is part of CustomLauncherRewrite.
+ *
+ * CustomLauncherRewrite is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CustomLauncherRewrite is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CustomLauncherRewrite.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lol.hyper.customlauncher.ttrupdater;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpdateProgressTest {
+
+    @Test
+    void timeLeftFollowsTheDownloadFraction() throws Exception {
+        UpdateProgress updateProgress = new UpdateProgress();
+        AtomicReference<Double> fraction = new AtomicReference<>(0.0);
+        updateProgress.setDownloadFraction(fraction::get);
+        // retries make far more bytes come in than the fraction shows
+        updateProgress.setDownloadedBytes(() -> 10_000_000);
+
+        assertEquals(-1, updateProgress.sample().secondsLeft());
+        updateProgress.downloadStarted(4);
+        Thread.sleep(1100);
+        assertEquals(-1, updateProgress.sample().secondsLeft());
+
+        fraction.set(0.25);
+        UpdateProgress.Snapshot snapshot = updateProgress.sample();
+        assertEquals(25, snapshot.percent());
+        // a quarter took about a second, so three quarters take about three
+        assertTrue(snapshot.secondsLeft() >= 3 && snapshot.secondsLeft() <= 6, "secondsLeft was " + snapshot.secondsLeft());
+    }
+
+    @Test
+    void percentFromTheListenerIsUsedUntilAFractionIsSet() {
+        UpdateProgress updateProgress = new UpdateProgress();
+        updateProgress.downloadProgress(40);
+
+        assertEquals(40, updateProgress.sample().percent());
+    }
+}